@@ -0,0 +1,33 @@
+package mvcoc.caches;
+
+/**
+ * A bounded cache of model results.
+ *
+ * Implementations are thread safe, and may evict any entry at any time.
+ */
+public interface Cache {
+
+	/**
+	 * The cached value, or null if absent.
+	 */
+	Object get(Object key);
+
+	void put(Object key, Object value);
+
+	/**
+	 * Replace the value only if the key is still cached with a value equal
+	 * to the old value, and return whether it is replaced.
+	 */
+	boolean replace(Object key, Object oldValue, Object newValue);
+
+	void remove(Object key);
+
+	/**
+	 * Remove the key only if it is still cached with a value equal to the
+	 * value, and return whether it is removed.
+	 */
+	boolean remove(Object key, Object value);
+
+	void clear();
+
+}
@@ -0,0 +1,19 @@
+package mvcoc.caches;
+
+import java.util.Properties;
+
+/**
+ * Create the caches of the model results.
+ *
+ * Configured by model.cache.provider, and per cache by &lt;cacheName&gt;.provider in
+ * the model cache properties, as lru, tinylfu, offheap or an implementation
+ * class name.
+ */
+public interface CacheProvider {
+
+	/**
+	 * Create the named cache, configured by the &lt;cacheName&gt;.* properties.
+	 */
+	Cache createCache(String cacheName, Properties properties);
+
+}
@@ -0,0 +1,58 @@
+package mvcoc.caches;
+
+import java.util.Properties;
+
+import mvcoc.util.ConcurrentLinkedHashMap;
+import mvcoc.util.PropertiesUtils;
+
+/**
+ * Least recently used caches, bounded by &lt;cacheName&gt;.capacity entries.
+ */
+public class LruCacheProvider implements CacheProvider {
+
+	@Override
+	public Cache createCache(String cacheName, Properties properties) {
+		return new LruCache(PropertiesUtils.getInt(properties, cacheName + ".capacity", 1000));
+	}
+
+	private static final class LruCache implements Cache {
+
+		private final ConcurrentLinkedHashMap<Object, Object> map;
+
+		LruCache(int capacity) {
+			this.map = new ConcurrentLinkedHashMap<Object, Object>(capacity);
+		}
+
+		@Override
+		public Object get(Object key) {
+			return map.get(key);
+		}
+
+		@Override
+		public void put(Object key, Object value) {
+			map.put(key, value);
+		}
+
+		@Override
+		public boolean replace(Object key, Object oldValue, Object newValue) {
+			return map.replace(key, oldValue, newValue);
+		}
+
+		@Override
+		public void remove(Object key) {
+			map.remove(key);
+		}
+
+		@Override
+		public boolean remove(Object key, Object value) {
+			return map.remove(key, value);
+		}
+
+		@Override
+		public void clear() {
+			map.clear();
+		}
+
+	}
+
+}
@@ -0,0 +1,277 @@
+package mvcoc.caches;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+
+import mvcoc.util.PropertiesUtils;
+
+/**
+ * Caches storing the serialized values out of the java heap, in a direct
+ * buffer of &lt;cacheName&gt;.size bytes (64M by default) divided into blocks of
+ * &lt;cacheName&gt;.block bytes (256 by default). The least recently used values
+ * are evicted when the blocks run out.
+ *
+ * Only the keys are kept on the heap. A value that is not serializable is
+ * not cached. The conditional replace and remove compare the deserialized
+ * value, so the values need an equals surviving serialization.
+ */
+public class OffHeapCacheProvider implements CacheProvider {
+
+	@Override
+	public Cache createCache(String cacheName, Properties properties) {
+		int blockSize = Math.max(16, PropertiesUtils.getInt(properties, cacheName + ".block", 256));
+		int size = PropertiesUtils.getInt(properties, cacheName + ".size", 64 * 1024 * 1024);
+		return new OffHeapCache(Math.max(1, size / blockSize), blockSize);
+	}
+
+	private static final class OffHeapCache implements Cache {
+
+		private final ByteBuffer store;
+
+		private final int blockSize;
+
+		private final int[] next;
+
+		private final LinkedHashMap<Object, Slot> index = new LinkedHashMap<Object, Slot>(16, 0.75f, true);
+
+		private int free;
+
+		private int freeCount;
+
+		OffHeapCache(int blocks, int blockSize) {
+			this.store = ByteBuffer.allocateDirect(blocks * blockSize);
+			this.blockSize = blockSize;
+			this.next = new int[blocks];
+			reset();
+		}
+
+		private void reset() {
+			for (int i = 0; i < next.length; i ++) {
+				next[i] = i + 1 < next.length ? i + 1 : -1;
+			}
+			free = 0;
+			freeCount = next.length;
+		}
+
+		@Override
+		public Object get(Object key) {
+			byte[] bytes;
+			synchronized (this) {
+				Slot slot = index.get(key);
+				if (slot == null) {
+					return null;
+				}
+				bytes = read(slot);
+			}
+			try {
+				return deserialize(bytes);
+			} catch (Exception e) {
+				e.printStackTrace();
+				remove(key);
+				return null;
+			}
+		}
+
+		@Override
+		public void put(Object key, Object value) {
+			byte[] bytes = serialize(value);
+			synchronized (this) {
+				store(key, bytes);
+			}
+		}
+
+		@Override
+		public boolean replace(Object key, Object oldValue, Object newValue) {
+			Slot slot = find(key, oldValue);
+			if (slot == null) {
+				return false;
+			}
+			byte[] bytes = serialize(newValue);
+			synchronized (this) {
+				if (index.get(key) != slot) {
+					return false;
+				}
+				store(key, bytes);
+				return true;
+			}
+		}
+
+		@Override
+		public synchronized void remove(Object key) {
+			release(index.remove(key));
+		}
+
+		@Override
+		public boolean remove(Object key, Object value) {
+			Slot slot = find(key, value);
+			if (slot == null) {
+				return false;
+			}
+			synchronized (this) {
+				if (index.get(key) != slot) {
+					return false;
+				}
+				release(index.remove(key));
+				return true;
+			}
+		}
+
+		/**
+		 * The slot of the key, if it holds a value equal to the value, which
+		 * is deserialized out of the lock.
+		 */
+		private Slot find(Object key, Object value) {
+			Slot slot;
+			byte[] bytes;
+			synchronized (this) {
+				slot = index.get(key);
+				if (slot == null) {
+					return null;
+				}
+				bytes = read(slot);
+			}
+			try {
+				return value != null && value.equals(deserialize(bytes)) ? slot : null;
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		private void store(Object key, byte[] bytes) {
+			release(index.remove(key));
+			int blocks = bytes == null ? 0 : (bytes.length + blockSize - 1) / blockSize;
+			if (bytes == null || blocks > next.length) {
+				return;
+			}
+			Iterator<Slot> eldest = index.values().iterator();
+			while (freeCount < blocks && eldest.hasNext()) {
+				Slot slot = eldest.next();
+				eldest.remove();
+				release(slot);
+			}
+			index.put(key, write(bytes, blocks));
+		}
+
+		@Override
+		public synchronized void clear() {
+			index.clear();
+			reset();
+		}
+
+		private Slot write(byte[] bytes, int blocks) {
+			int first = free;
+			int block = first;
+			int last = -1;
+			for (int i = 0; i < blocks; i ++) {
+				int offset = i * blockSize;
+				store.position(block * blockSize);
+				store.put(bytes, offset, Math.min(blockSize, bytes.length - offset));
+				last = block;
+				block = next[block];
+			}
+			free = block;
+			freeCount -= blocks;
+			next[last] = -1;
+			return new Slot(first, bytes.length);
+		}
+
+		private byte[] read(Slot slot) {
+			byte[] bytes = new byte[slot.length];
+			int block = slot.first;
+			for (int offset = 0; offset < bytes.length; offset += blockSize) {
+				store.position(block * blockSize);
+				store.get(bytes, offset, Math.min(blockSize, bytes.length - offset));
+				block = next[block];
+			}
+			return bytes;
+		}
+
+		private void release(Slot slot) {
+			if (slot == null) {
+				return;
+			}
+			int block = slot.first;
+			int count = 1;
+			while (next[block] != -1) {
+				block = next[block];
+				count ++;
+			}
+			next[block] = free;
+			free = slot.first;
+			freeCount += count;
+		}
+
+	}
+
+	private static final class Slot {
+
+		final int first;
+
+		final int length;
+
+		Slot(int first, int length) {
+			this.first = first;
+			this.length = length;
+		}
+
+	}
+
+	private static byte[] serialize(Object value) {
+		if (! (value instanceof Serializable)) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// a serializable collection of not serializable beans
+			return null;
+		}
+	}
+
+	private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ContextObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Resolve the classes of the values by the context class loader, e.g. of the web application.
+	 */
+	private static final class ContextObjectInputStream extends ObjectInputStream {
+
+		ContextObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			if (classLoader != null) {
+				try {
+					return Class.forName(desc.getName(), false, classLoader);
+				} catch (ClassNotFoundException e) {
+				}
+			}
+			return super.resolveClass(desc);
+		}
+
+	}
+
+}
@@ -0,0 +1,229 @@
+package mvcoc.caches;
+
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import mvcoc.util.PropertiesUtils;
+
+/**
+ * Frequency aware caches, bounded by &lt;cacheName&gt;.capacity entries, in the
+ * style of W-TinyLFU: new entries enter a small LRU window, and an entry
+ * evicted from the window is admitted to the main LRU space only if it has
+ * been used more often than the main victim, as estimated by a count-min
+ * sketch. So a scan of one-off keys does not flush the hot entries.
+ */
+public class TinyLfuCacheProvider implements CacheProvider {
+
+	@Override
+	public Cache createCache(String cacheName, Properties properties) {
+		return new TinyLfuCache(PropertiesUtils.getInt(properties, cacheName + ".capacity", 1000));
+	}
+
+	private static final class TinyLfuCache implements Cache {
+
+		private final ConcurrentHashMap<Object, Object> data = new ConcurrentHashMap<Object, Object>();
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final LinkedHashMap<Object, Boolean> window = new LinkedHashMap<Object, Boolean>(16, 0.75f, true);
+
+		private final LinkedHashMap<Object, Boolean> main = new LinkedHashMap<Object, Boolean>(16, 0.75f, true);
+
+		private final int windowCapacity;
+
+		private final int mainCapacity;
+
+		private final FrequencySketch sketch;
+
+		TinyLfuCache(int capacity) {
+			this.windowCapacity = Math.max(1, capacity / 100);
+			this.mainCapacity = Math.max(1, capacity - windowCapacity);
+			this.sketch = new FrequencySketch(capacity);
+		}
+
+		@Override
+		public Object get(Object key) {
+			sketch.increment(key);
+			Object value = data.get(key);
+			// the recency of a read is best effort, skipped under contention
+			if (value != null && lock.tryLock()) {
+				try {
+					touch(key);
+				} finally {
+					lock.unlock();
+				}
+			}
+			return value;
+		}
+
+		@Override
+		public void put(Object key, Object value) {
+			sketch.increment(key);
+			lock.lock();
+			try {
+				if (data.put(key, value) != null) {
+					touch(key);
+					return;
+				}
+				window.put(key, Boolean.TRUE);
+				if (window.size() > windowCapacity) {
+					Object candidate = window.keySet().iterator().next();
+					window.remove(candidate);
+					admit(candidate);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void touch(Object key) {
+			if (window.get(key) == null) {
+				main.get(key);
+			}
+		}
+
+		private void admit(Object candidate) {
+			if (main.size() < mainCapacity) {
+				main.put(candidate, Boolean.TRUE);
+				return;
+			}
+			Object victim = main.keySet().iterator().next();
+			if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+				main.remove(victim);
+				data.remove(victim);
+				main.put(candidate, Boolean.TRUE);
+			} else {
+				data.remove(candidate);
+			}
+		}
+
+		@Override
+		public boolean replace(Object key, Object oldValue, Object newValue) {
+			lock.lock();
+			try {
+				if (! data.replace(key, oldValue, newValue)) {
+					return false;
+				}
+				touch(key);
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void remove(Object key) {
+			lock.lock();
+			try {
+				if (data.remove(key) != null && window.remove(key) == null) {
+					main.remove(key);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public boolean remove(Object key, Object value) {
+			lock.lock();
+			try {
+				if (! data.remove(key, value)) {
+					return false;
+				}
+				if (window.remove(key) == null) {
+					main.remove(key);
+				}
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void clear() {
+			lock.lock();
+			try {
+				data.clear();
+				window.clear();
+				main.clear();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+	}
+
+	/**
+	 * Count-min sketch of 4 rows of counters saturating at 15, halved every
+	 * 10 * capacity increments so the old frequencies fade out. The counters
+	 * are updated without locking, so a few increments may be lost.
+	 */
+	private static final class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x97cb3127, 0xab3e1a6d, 0x7a6b5e1c, 0x5bd1e995 };
+
+		private static final int MAX_COUNT = 15;
+
+		private final int[] table;
+
+		private final int width;
+
+		private final int sampleSize;
+
+		private int size;
+
+		FrequencySketch(int capacity) {
+			int width = 16;
+			while (width < capacity && width < (1 << 24)) {
+				width <<= 1;
+			}
+			this.width = width;
+			this.table = new int[width * SEEDS.length];
+			this.sampleSize = Math.max(10 * capacity, 100);
+		}
+
+		private int index(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+			h ^= h >>> 16;
+			return row * width + (h & (width - 1));
+		}
+
+		void increment(Object key) {
+			int hash = key == null ? 0 : key.hashCode();
+			boolean added = false;
+			for (int row = 0; row < SEEDS.length; row ++) {
+				int i = index(hash, row);
+				if (table[i] < MAX_COUNT) {
+					table[i] ++;
+					added = true;
+				}
+			}
+			if (added && ++ size >= sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(Object key) {
+			int hash = key == null ? 0 : key.hashCode();
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < SEEDS.length; row ++) {
+				frequency = Math.min(frequency, table[index(hash, row)]);
+			}
+			return frequency;
+		}
+
+		private synchronized void reset() {
+			if (size < sampleSize) {
+				return;
+			}
+			for (int i = 0; i < table.length; i ++) {
+				table[i] >>>= 1;
+			}
+			size = size / 2;
+		}
+
+	}
+
+}
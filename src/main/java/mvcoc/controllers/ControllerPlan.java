@@ -0,0 +1,187 @@
+package mvcoc.controllers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import mvcoc.Model;
+import mvcoc.util.ClassUtils;
+
+/**
+ * Parsed controller file, e.g. /user/${id}.get:
+ *
+ * user = userModel.getUser(id)
+ * comments = commentModel.findComments(id)
+ *
+ * Each line is compiled once into an {@link Instruction} assigned to its key,
+ * with the root keys it reads and writes, and the lines are grouped into stages: a line depends on
+ * the earlier lines whose writes it reads or whose reads or writes it
+ * overwrites, and is placed in the stage after the last of them. The lines
+ * of a stage are independent of each other.
+ */
+public final class ControllerPlan {
+
+	private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+");
+
+	private static final Pattern COMMA_PATTERN = Pattern.compile("\\,");
+
+	private final Line[] lines;
+
+	private final int[][] stages;
+
+	public ControllerPlan(List<String> properties, String formPackage) {
+		List<Line> list = new ArrayList<Line>();
+		for (String property : properties) {
+			String line = property.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			int n = line.indexOf('=');
+			if (n <= 0) {
+				throw new IllegalStateException("Illegal " + line);
+			}
+			list.add(new Line(line.substring(0, n).trim(), line.substring(n + 1).trim(), formPackage));
+		}
+		this.lines = list.toArray(new Line[list.size()]);
+		int[] levels = new int[lines.length];
+		int depth = 0;
+		for (int j = 0; j < lines.length; j ++) {
+			int level = 0;
+			for (int i = 0; i < j; i ++) {
+				if (lines[j].dependsOn(lines[i])) {
+					level = Math.max(level, levels[i] + 1);
+				}
+			}
+			levels[j] = level;
+			depth = Math.max(depth, level + 1);
+		}
+		this.stages = new int[depth][];
+		for (int level = 0; level < depth; level ++) {
+			int count = 0;
+			for (int j = 0; j < lines.length; j ++) {
+				if (levels[j] == level) {
+					count ++;
+				}
+			}
+			int[] stage = new int[count];
+			count = 0;
+			for (int j = 0; j < lines.length; j ++) {
+				if (levels[j] == level) {
+					stage[count ++] = j;
+				}
+			}
+			stages[level] = stage;
+		}
+	}
+
+	public Line[] getLines() {
+		return lines;
+	}
+
+	/**
+	 * The line indexes of each stage, in file order.
+	 */
+	public int[][] getStages() {
+		return stages;
+	}
+
+	private static String getRoot(String path) {
+		int i = path.indexOf('.');
+		return i < 0 ? path : path.substring(0, i);
+	}
+
+	public static final class Line {
+
+		private final String key;
+
+		private final String value;
+
+		private final String write;
+
+		private final Set<String> reads;
+
+		private final boolean call;
+
+		private final Instruction instruction;
+
+		Line(String key, String value, String formPackage) {
+			this.key = key;
+			this.value = value;
+			this.write = getRoot(key);
+			this.instruction = Instruction.compile(value, formPackage);
+			Set<String> reads = new HashSet<String>();
+			boolean literal = (value.startsWith("\"") && value.endsWith("\""))
+					|| NUMBER_PATTERN.matcher(value).matches();
+			boolean call = ! literal && value.contains("(") && value.endsWith(")");
+			if (call) {
+				int i = value.indexOf("(");
+				int j = value.indexOf(".");
+				if (j > 0 && j < i) {
+					reads.add(value.substring(0, j));
+				}
+				for (String arg : COMMA_PATTERN.split(value.substring(i + 1, value.length() - 1))) {
+					arg = arg.trim();
+					if (arg.length() > 0) {
+						reads.add(getRoot(arg));
+					}
+				}
+			} else if (! literal && ! value.startsWith("new ")) {
+				reads.add(getRoot(value));
+			}
+			this.reads = Collections.unmodifiableSet(reads);
+			this.call = call;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * Evaluate the value of the line.
+		 */
+		public Object evaluate(Map<String, Object> models, Model model) throws Exception {
+			return instruction.execute(models, model);
+		}
+
+		/**
+		 * Assign the evaluated value to the key, unless it is null.
+		 */
+		public void assign(Map<String, Object> models, Object result) throws Exception {
+			if (result == null) {
+				return;
+			}
+			if (write.length() == key.length()) {
+				models.put(key, result);
+			} else {
+				ClassUtils.setProperty(models, key, result);
+			}
+		}
+
+		/**
+		 * Whether the value is a model method call, worth running in parallel.
+		 */
+		public boolean isCall() {
+			return call;
+		}
+
+		boolean dependsOn(Line line) {
+			return reads.contains(line.write) || line.reads.contains(write)
+					|| write.equals(line.write);
+		}
+
+		@Override
+		public String toString() {
+			return key + " = " + value;
+		}
+
+	}
+
+}
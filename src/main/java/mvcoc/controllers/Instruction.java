@@ -0,0 +1,229 @@
+package mvcoc.controllers;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import mvcoc.Model;
+import mvcoc.util.ClassUtils;
+import mvcoc.util.PropertyGetter;
+
+/**
+ * Compiled value of a controller file line, one of:
+ *
+ * "literal", 123, model.method(arg1, arg2), new Form, new Form[10], property.path
+ */
+public abstract class Instruction {
+
+	private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+");
+
+	private static final Pattern COMMA_PATTERN = Pattern.compile("\\,");
+
+	public abstract Object execute(Map<String, Object> models, Model model) throws Exception;
+
+	public static Instruction compile(String value, String formPackage) {
+		if (value.startsWith("\"") && value.endsWith("\"")) {
+			return new Literal(value.substring(1, value.length() - 1));
+		} else if (NUMBER_PATTERN.matcher(value).matches()) {
+			return new Literal(Integer.valueOf(value));
+		} else if (value.contains("(") && value.endsWith(")")) {
+			int i = value.indexOf("(");
+			int j = value.indexOf(".");
+			if (j < 0 || j > i) {
+				throw new IllegalStateException("Illegal " + value);
+			}
+			String methodArgs = value.substring(i + 1, value.length() - 1).trim();
+			String[] exprs = methodArgs.length() == 0 ? new String[0] : COMMA_PATTERN.split(methodArgs);
+			Accessor[] args = new Accessor[exprs.length];
+			for (int k = 0; k < exprs.length; k ++) {
+				args[k] = new Accessor(exprs[k].trim());
+			}
+			return new Call(value.substring(0, j), value.substring(j + 1, i), args);
+		} else if (value.startsWith("new ")) {
+			if (value.contains("[") && value.endsWith("]")) {
+				int i = value.indexOf("[");
+				String domainName = value.substring(4, i);
+				Class<?> domanClass;
+				try {
+					domanClass = ClassUtils.forName(domainName);
+				} catch (RuntimeException e) {
+					if (domainName.indexOf('.') < 0) {
+						domainName = formPackage  + "." + domainName;
+						domanClass = ClassUtils.forName(domainName);
+					} else {
+						throw e;
+					}
+				}
+				return new NewArray(domanClass, Integer.parseInt(value.substring(i + 1, value.length() - 1)));
+			} else {
+				String domainName = value.substring(4);
+				if (domainName.indexOf('.') < 0) {
+					domainName = formPackage  + "." + domainName;
+				}
+				return new NewInstance(ClassUtils.forName(domainName));
+			}
+		} else {
+			return new Copy(new Accessor(value));
+		}
+	}
+
+	private static final class Literal extends Instruction {
+
+		private final Object value;
+
+		Literal(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object execute(Map<String, Object> models, Model model) {
+			return value;
+		}
+
+	}
+
+	private static final class Call extends Instruction {
+
+		private final String modelName;
+
+		private final String methodName;
+
+		private final Accessor[] args;
+
+		private volatile Target target;
+
+		Call(String modelName, String methodName, Accessor[] args) {
+			this.modelName = modelName;
+			this.methodName = methodName;
+			this.args = args;
+		}
+
+		@Override
+		public Object execute(Map<String, Object> models, Model model) throws Exception {
+			Object service = models.get(modelName);
+			if (service == null) {
+				service = model.get(modelName);
+			}
+			Target target = this.target;
+			if (target == null || target.serviceClass != service.getClass()) {
+				target = new Target(service.getClass(), ClassUtils.getMethod(service, methodName));
+				this.target = target;
+			}
+			Method method = target.method;
+			Class<?>[] types = target.types;
+			Object[] values = new Object[types.length];
+			for (int k = 0; k < types.length; k ++) {
+				Object value = k < args.length ? args[k].getValue(models) : null;
+				values[k] = ClassUtils.convertValue(value, types[k]);
+			}
+			return method.invoke(service, values);
+		}
+
+	}
+
+	private static final class Target {
+
+		final Class<?> serviceClass;
+
+		final Method method;
+
+		final Class<?>[] types;
+
+		Target(Class<?> serviceClass, Method method) {
+			this.serviceClass = serviceClass;
+			this.method = method;
+			this.types = method.getParameterTypes();
+		}
+
+	}
+
+	private static final class NewInstance extends Instruction {
+
+		private final Class<?> cls;
+
+		NewInstance(Class<?> cls) {
+			this.cls = cls;
+		}
+
+		@Override
+		public Object execute(Map<String, Object> models, Model model) throws Exception {
+			return cls.newInstance();
+		}
+
+	}
+
+	private static final class NewArray extends Instruction {
+
+		private final Class<?> componentType;
+
+		private final int length;
+
+		NewArray(Class<?> componentType, int length) {
+			this.componentType = componentType;
+			this.length = length;
+		}
+
+		@Override
+		public Object execute(Map<String, Object> models, Model model) {
+			return Array.newInstance(componentType, length);
+		}
+
+	}
+
+	private static final class Copy extends Instruction {
+
+		private final Accessor accessor;
+
+		Copy(Accessor accessor) {
+			this.accessor = accessor;
+		}
+
+		@Override
+		public Object execute(Map<String, Object> models, Model model) throws Exception {
+			return accessor.getValue(models);
+		}
+
+	}
+
+	/**
+	 * Read a property path from the models, as {@link ClassUtils#getProperty(Map, String)}
+	 * does, with the getter of the root bean class resolved once.
+	 */
+	static final class Accessor {
+
+		private final String path;
+
+		private final String root;
+
+		private final String property;
+
+		private volatile PropertyGetter getter;
+
+		Accessor(String path) {
+			this.path = path;
+			int i = path.indexOf('.');
+			this.root = i > 0 ? path.substring(0, i) : null;
+			this.property = i > 0 ? path.substring(i + 1) : null;
+		}
+
+		Object getValue(Map<String, Object> models) throws Exception {
+			Object value = models.get(path);
+			if (value != null || root == null) {
+				return value;
+			}
+			Object bean = models.get(root);
+			if (bean == null) {
+				return null;
+			}
+			PropertyGetter getter = this.getter;
+			if (getter == null || getter.getOwner() != bean.getClass()) {
+				getter = PropertyGetter.compile(bean.getClass(), property);
+				this.getter = getter;
+			}
+			return getter.getValue(bean);
+		}
+
+	}
+
+}
@@ -0,0 +1,24 @@
+package mvcoc.controllers;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Stackless signal of a uri that matches no controller or view path.
+ *
+ * It is thrown for every request of a missing uri, so it does not fill in
+ * the stack trace, and one instance is reused per negatively cached uri.
+ */
+public class NotFoundException extends FileNotFoundException {
+
+	private static final long serialVersionUID = 1L;
+
+	public NotFoundException(String message) {
+		super(message);
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
+}
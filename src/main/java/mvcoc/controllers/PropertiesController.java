@@ -1,35 +1,45 @@
 package mvcoc.controllers;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.InputStream;
-import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 
 import mvcoc.Controller;
 import mvcoc.Model;
 import mvcoc.util.ClassUtils;
+import mvcoc.util.ConcurrentLinkedHashMap;
+import mvcoc.util.FileWatcher;
 import mvcoc.util.IOUtils;
+import mvcoc.util.NamedThreadFactory;
+import mvcoc.util.PropertiesUtils;
 
 public class PropertiesController implements Controller {
 
-	private static final Pattern PATH_SPLIT = Pattern.compile("[/]+");
+	private volatile Router router = new Router(new HashMap<String, Object>());
 
-	private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+");
+	private final Map<String, ControllerPlan> controllerPlans = new ConcurrentHashMap<String, ControllerPlan>();
 
-	private final Map<String, Object> pathMapping = new ConcurrentHashMap<String, Object>();
+	private final ConcurrentLinkedHashMap<String, NotFoundException> notFounds = new ConcurrentLinkedHashMap<String, NotFoundException>(1000);
 
-	private final Map<String, List<String>> controllerProperties = new ConcurrentHashMap<String, List<String>>();
+	private final AtomicLong notFoundLookups = new AtomicLong();
+
+	private final AtomicLong notFoundHits = new AtomicLong();
 
 	private String indexPath;
 
@@ -43,6 +53,12 @@ public class PropertiesController implements Controller {
 
 	private Model model;
 
+	private ExecutorService executor;
+
+	private int reloadInterval;
+
+	private FileWatcher watcher;
+
 	public void setModel(Model model) {
 		this.model = model;
 	}
@@ -52,6 +68,18 @@ public class PropertiesController implements Controller {
 		formPackage = config.getProperty("controller.form.package");
 		controllerDirectory = config.getProperty("controller.directory");
 		viewDirectory = config.getProperty("view.directory");
+		reloadInterval = PropertiesUtils.getInt(config, "reload.interval", 0);
+		notFounds.setCapacity(Math.max(1, PropertiesUtils.getInt(config, "controller.notfound.capacity", 1000)));
+		int threads = PropertiesUtils.getInt(config, "controller.executor.threads", 0);
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		if (threads > 0) {
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(PropertiesUtils.getInt(config, "controller.executor.queues", 1000)), 
+					new NamedThreadFactory("mvcoc-controller"), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
 	    init();
 	}
 	
@@ -62,13 +90,81 @@ public class PropertiesController implements Controller {
 	
 	private void init() {
 		if (servletContext != null) {
-			if (controllerDirectory != null && controllerDirectory.length() > 0) {
-				addDirectory(new File(servletContext.getRealPath(controllerDirectory)), pathMapping);
+			loadMapping();
+			if (watcher != null) {
+				watcher.stop();
+				watcher = null;
+			}
+			if (reloadInterval > 0) {
+				watcher = new FileWatcher(reloadInterval);
+				if (controllerDirectory != null && controllerDirectory.length() > 0) {
+					final File directory = new File(servletContext.getRealPath(controllerDirectory));
+					watcher.watch(directory, new FileWatcher.Listener() {
+						@Override
+						public void onChanged(File file, FileWatcher.Change change) {
+							String path = file.getPath().substring(directory.getPath().length());
+							controllerPlans.remove(path.replace(File.separatorChar, '/'));
+							if (change != FileWatcher.Change.MODIFIED) {
+								loadMapping();
+							}
+						}
+					});
+				}
+			    if (viewDirectory != null && viewDirectory.length() > 0 
+			    		&& ! viewDirectory.equals(controllerDirectory)) {
+			    	watcher.watch(new File(servletContext.getRealPath(viewDirectory)), new FileWatcher.Listener() {
+						@Override
+						public void onChanged(File file, FileWatcher.Change change) {
+							if (change != FileWatcher.Change.MODIFIED) {
+								loadMapping();
+							}
+						}
+					});
+			    }
+				watcher.start();
 			}
-		    if (viewDirectory != null && viewDirectory.length() > 0 
-		    		&& ! viewDirectory.equals(controllerDirectory)) {
-		    	addDirectory(new File(servletContext.getRealPath(viewDirectory)), pathMapping);
-		    }
+		}
+	}
+
+	/**
+	 * Build the router of the controller and view directories, and swap it in
+	 * at once, so a request sees either the old or the new routes.
+	 */
+	private synchronized void loadMapping() {
+		Map<String, Object> mapping = new HashMap<String, Object>();
+		if (controllerDirectory != null && controllerDirectory.length() > 0) {
+			addDirectory(new File(servletContext.getRealPath(controllerDirectory)), mapping);
+		}
+	    if (viewDirectory != null && viewDirectory.length() > 0 
+	    		&& ! viewDirectory.equals(controllerDirectory)) {
+	    	addDirectory(new File(servletContext.getRealPath(viewDirectory)), mapping);
+	    }
+	    router = new Router(mapping);
+	    notFounds.clear();
+	}
+
+	/**
+	 * The times the missing uri cache was consulted.
+	 */
+	public long getNotFoundLookups() {
+		return notFoundLookups.get();
+	}
+
+	/**
+	 * The times a uri was found in the missing uri cache.
+	 */
+	public long getNotFoundHits() {
+		return notFoundHits.get();
+	}
+
+	public void destroy() {
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
 		}
 	}
 
@@ -114,48 +210,34 @@ public class PropertiesController implements Controller {
 	    }
 	}
 
-	@SuppressWarnings("unchecked")
 	public String execute(String action, String uri, Map<String, Object> models) throws Exception {
 		if (uri.length() == 0 || "/".equals(uri)) {
 			uri = indexPath;
 		}
-		String[] tokens = PATH_SPLIT.split(uri);
-		StringBuilder pathBuilder = new StringBuilder();
-		Map<String, Object> mapping = pathMapping;
-		for (String token : tokens) {
-			if (token.length() == 0) {
-				continue;
-			}
-			Map<String, Object> value = (Map<String, Object>) mapping.get(token);
-			if (value != null) {
-				pathBuilder.append("/");
-				pathBuilder.append(token);
-			} else {
-				value = (Map<String, Object>) mapping.get("$");
-				if (value != null) {
-					String var = (String) value.get(".");
-					models.put(var, token);
-					pathBuilder.append("/${");
-					pathBuilder.append(var);
-					pathBuilder.append("}");
-				} else {
-					throw new FileNotFoundException("No such " + uri);
-				}
-			}
-			mapping = value;
+		notFoundLookups.incrementAndGet();
+		NotFoundException notFound = notFounds.get(uri);
+		if (notFound != null) {
+			notFoundHits.incrementAndGet();
+			throw notFound;
+		}
+		Router.Route route = router.match(uri, models);
+		if (route == null) {
+			notFound = new NotFoundException("No such " + uri);
+			notFounds.put(uri, notFound);
+			throw notFound;
 		}
-		String path = pathBuilder.toString();
-		String controller = path + "." + action;
+		String path = route.getPath();
+		String controller = route.getController(action);
 		try {
-			List<String> properties = controllerProperties.get(controller);
-			if (properties == null) {
+			ControllerPlan plan = controllerPlans.get(controller);
+			if (plan == null) {
 				InputStream in = servletContext.getResourceAsStream(controllerDirectory + controller);
 				if (in != null) {
-					properties = IOUtils.readToLines(in);
+					plan = new ControllerPlan(IOUtils.readToLines(in), formPackage);
 				} else {
-					properties = new ArrayList<String>();
+					plan = new ControllerPlan(new ArrayList<String>(), formPackage);
 				}
-				controllerProperties.put(controller, properties);
+				controllerPlans.put(controller, plan);
 			}
 			Map<String, Object> parameters = new HashMap<String, Object>(models);
 			for (Map.Entry<String, Object> entry : parameters.entrySet()) {
@@ -170,65 +252,11 @@ public class PropertiesController implements Controller {
 					}
 				}
 			}
-			for (String line : properties) {
-				int n = line.indexOf('=');
-				String key = (line.substring(0, n)).trim();
-				String value = (line.substring(n + 1)).trim();
-				Object result;
-				if (value.startsWith("\"") && value.endsWith("\"")) {
-					result = value.substring(1, value.length() - 1);
-				} else if (NUMBER_PATTERN.matcher(value).matches()) {
-					result = Integer.valueOf(value);
-				} else if (value.contains("(") && value.endsWith(")")) {
-					int i = value.indexOf("(");
-					int j = value.indexOf(".");
-					if (j < 0 || j > i) {
-						throw new IllegalStateException("Illegal " + value);
-					}
-					String modelName = value.substring(0, j);
-					String methodName = value.substring(j + 1, i);
-					String methodArgs = value.substring(i + 1, value.length() - 1);
-					Object service = models.get(modelName);
-					if (service == null) {
-						service = model.get(modelName);
-					}
-					Method method = ClassUtils.getMethod(service, methodName);
-					if (method.getParameterTypes().length == 0) {
-						result = method.invoke(service, new Object[0]);
-					} else if (method.getParameterTypes().length == 1) {
-						Object arg = ClassUtils.convertValue(ClassUtils.getProperty(models, methodArgs), method.getParameterTypes()[0]);
-						result = method.invoke(service, new Object[] { arg });
-					} else {
-						throw new IllegalStateException("Unsupported multi args in " + modelName + "." + methodName);
-					}
-				} else if (value.startsWith("new ")) {
-					if (value.contains("[") && value.endsWith("]")) {
-						int i = value.indexOf("[");
-						String domainName = value.substring(4, i);
-						Class<?> domanClass;
-						try {
-							domanClass = ClassUtils.forName(domainName);
-						} catch (RuntimeException e) {
-							if (domainName.indexOf('.') < 0) {
-								domainName = formPackage  + "." + domainName;
-								domanClass = ClassUtils.forName(domainName);
-							} else {
-								throw e;
-							}
-						}
-						result = Array.newInstance(domanClass, Integer.parseInt(value.substring(i + 1, value.length() - 1)));
-					} else {
-						String domainName = value.substring(4);
-						if (domainName.indexOf('.') < 0) {
-							domainName = formPackage  + "." + domainName;
-						}
-						result = ClassUtils.forName(domainName).newInstance();
-					}
-				} else {
-					result = ClassUtils.getProperty(models, value);
-				}
-				if (result != null) {
-					ClassUtils.setProperty(models, key, result);
+			if (executor != null && "get".equals(action)) {
+				executeParallel(plan, models);
+			} else {
+				for (ControllerPlan.Line line : plan.getLines()) {
+					line.assign(models, line.evaluate(models, model));
 				}
 			}
 			String redirect = (String) models.get("redirect");
@@ -263,6 +291,97 @@ public class PropertiesController implements Controller {
 		}
 	}
 
+	/**
+	 * Execute the stages of the plan in order, running the model calls of a
+	 * stage concurrently (the last one on the calling thread), and assigning
+	 * the results in line order after the stage is joined.
+	 */
+	private void executeParallel(ControllerPlan plan, final Map<String, Object> models) throws Exception {
+		ControllerPlan.Line[] lines = plan.getLines();
+		for (int[] stage : plan.getStages()) {
+			Object[] results = new Object[stage.length];
+			List<Future<Object>> futures = new ArrayList<Future<Object>>(stage.length);
+			int calls = 0;
+			for (int index : stage) {
+				if (lines[index].isCall()) {
+					calls ++;
+				}
+			}
+			Throwable failure = null;
+			boolean joined = false;
+			try {
+				for (int k = 0; k < stage.length; k ++) {
+					final ControllerPlan.Line line = lines[stage[k]];
+					if (line.isCall() && -- calls > 0) {
+						futures.add(executor.submit(new Callable<Object>() {
+							@Override
+							public Object call() throws Exception {
+								return line.evaluate(models, model);
+							}
+						}));
+					} else {
+						futures.add(null);
+						results[k] = line.evaluate(models, model);
+					}
+				}
+				for (int k = 0; k < stage.length; k ++) {
+					Future<Object> future = futures.get(k);
+					if (future != null) {
+						try {
+							results[k] = future.get();
+						} catch (ExecutionException e) {
+							if (failure == null) {
+								failure = e.getCause();
+							}
+						} catch (InterruptedException e) {
+							// keep the status, so the rest of the stage is cancelled
+							Thread.currentThread().interrupt();
+							throw e;
+						}
+					}
+				}
+				joined = true;
+			} finally {
+				if (! joined) {
+					await(futures);
+				}
+			}
+			if (failure instanceof Exception) {
+				throw (Exception) failure;
+			} else if (failure != null) {
+				throw new ExecutionException(failure.getMessage(), failure);
+			}
+			for (int k = 0; k < stage.length; k ++) {
+				lines[stage[k]].assign(models, results[k]);
+			}
+		}
+	}
+
+	/**
+	 * Wait for the model calls of a failed stage, so none of them still reads
+	 * the models or holds a connection after the request has failed, or
+	 * cancel them if interrupted.
+	 */
+	private static void await(List<Future<Object>> futures) {
+		for (Future<Object> future : futures) {
+			if (future == null) {
+				continue;
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				future.cancel(true);
+				continue;
+			}
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				future.cancel(true);
+			} catch (Throwable e) {
+				// the failure of the stage is reported instead
+			}
+		}
+	}
+
 	@Override
 	public String get(String path, Map<String, Object> parameters) throws Exception {
 		return execute("get", path, parameters);
@@ -0,0 +1,176 @@
+package mvcoc.controllers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable routing trie of the controller and view directories.
+ *
+ * A uri is matched by scanning its segments in place: each segment is compared
+ * with the literal children of the node, and otherwise captured by the ${var}
+ * child. The matched node returns its preallocated {@link Route}.
+ */
+public final class Router {
+
+	private static final String VAR_KEY = "$";
+
+	private static final String VAR_NAME_KEY = ".";
+
+	private final Node root;
+
+	/**
+	 * Compile the nested path mapping, where "$" is the ${var} child and "."
+	 * its variable name.
+	 */
+	public Router(Map<String, Object> mapping) {
+		this.root = new Node(mapping, "", new String[0]);
+	}
+
+	/**
+	 * Match the uri, putting the ${var} segments into the models.
+	 *
+	 * @return the route, or null if no such path
+	 */
+	public Route match(String uri, Map<String, Object> models) {
+		Node node = root;
+		int length = uri.length();
+		int start = 0;
+		while (start < length) {
+			if (uri.charAt(start) == '/') {
+				start ++;
+				continue;
+			}
+			int end = uri.indexOf('/', start);
+			if (end < 0) {
+				end = length;
+			}
+			Node child = node.getChild(uri, start, end - start);
+			if (child != null) {
+				node = child;
+			} else if (node.var != null) {
+				models.put(node.varName, uri.substring(start, end));
+				node = node.var;
+			} else {
+				return null;
+			}
+			start = end;
+		}
+		return node.route;
+	}
+
+	private static final class Node {
+
+		final String[] names;
+
+		final Node[] children;
+
+		final Node var;
+
+		final String varName;
+
+		final Route route;
+
+		@SuppressWarnings("unchecked")
+		Node(Map<String, Object> mapping, String path, String[] vars) {
+			this.route = new Route(path, vars);
+			List<String> names = new ArrayList<String>();
+			List<Node> children = new ArrayList<Node>();
+			Node var = null;
+			String varName = null;
+			for (Map.Entry<String, Object> entry : mapping.entrySet()) {
+				String name = entry.getKey();
+				if (VAR_NAME_KEY.equals(name)) {
+					continue;
+				}
+				Map<String, Object> child = (Map<String, Object>) entry.getValue();
+				if (VAR_KEY.equals(name)) {
+					varName = (String) child.get(VAR_NAME_KEY);
+					if (varName != null) {
+						String[] childVars = new String[vars.length + 1];
+						System.arraycopy(vars, 0, childVars, 0, vars.length);
+						childVars[vars.length] = varName;
+						var = new Node(child, path + "/${" + varName + "}", childVars);
+					}
+				} else {
+					names.add(name);
+					children.add(new Node(child, path + "/" + name, vars));
+				}
+			}
+			this.names = names.toArray(new String[names.size()]);
+			this.children = children.toArray(new Node[children.size()]);
+			this.var = var;
+			this.varName = varName;
+		}
+
+		Node getChild(String uri, int offset, int length) {
+			for (int i = 0; i < names.length; i ++) {
+				String name = names[i];
+				if (name.length() == length && uri.regionMatches(offset, name, 0, length)) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+	}
+
+	/**
+	 * A matched path, e.g. /user/${id}, with its variable names and the
+	 * controller file names of the actions.
+	 */
+	public static final class Route {
+
+		private final String path;
+
+		private final String[] vars;
+
+		private final String get;
+
+		private final String post;
+
+		private final String put;
+
+		private final String delete;
+
+		Route(String path, String[] vars) {
+			this.path = path;
+			this.vars = vars;
+			this.get = path + ".get";
+			this.post = path + ".post";
+			this.put = path + ".put";
+			this.delete = path + ".delete";
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public String[] getVars() {
+			return vars.clone();
+		}
+
+		/**
+		 * The controller file name of the action, e.g. /user/${id}.get
+		 */
+		public String getController(String action) {
+			if ("get".equals(action)) {
+				return get;
+			} else if ("post".equals(action)) {
+				return post;
+			} else if ("put".equals(action)) {
+				return put;
+			} else if ("delete".equals(action)) {
+				return delete;
+			}
+			return path + "." + action;
+		}
+
+		@Override
+		public String toString() {
+			return path;
+		}
+
+	}
+
+}
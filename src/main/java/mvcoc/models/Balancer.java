@@ -0,0 +1,15 @@
+package mvcoc.models;
+
+import org.apache.tomcat.dbcp.dbcp.BasicDataSource;
+
+/**
+ * Choose the replica datasource a select is routed to.
+ *
+ * Configured by model.datasource.replica.balancer, as roundrobin, leastactive
+ * or an implementation class name.
+ */
+public interface Balancer {
+
+	BasicDataSource select(BasicDataSource[] replicas);
+
+}
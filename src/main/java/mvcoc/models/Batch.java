@@ -0,0 +1,24 @@
+package mvcoc.models;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Execute a write as a jdbc batch, binding the sql once per element of the
+ * array or collection argument, e.g.
+ *
+ * &#64;Batch int[] updateUsers(List&lt;User&gt; users);
+ *
+ * updateUsers=update user set name = ${name} where id = ${id}
+ *
+ * Without it, an array argument is bound as the positional parameters.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Batch {
+
+}
@@ -0,0 +1,253 @@
+package mvcoc.models;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.HashMap;
+import java.util.Map;
+
+import mvcoc.util.ClassUtils;
+import mvcoc.util.StringUtils;
+
+/**
+ * Map rows directly to beans with typed result set getters.
+ *
+ * The column index to setter binding is resolved from the first result set
+ * metadata, and reused for the following rows and queries. Single column rows
+ * are mapped to the column value, as {@link ConvertRowMapper} does.
+ */
+public class BeanRowMapper implements RowMapper {
+
+	private static final int OBJECT = 0;
+
+	private static final int STRING = 1;
+
+	private static final int BOOLEAN = 2;
+
+	private static final int BYTE = 3;
+
+	private static final int SHORT = 4;
+
+	private static final int INT = 5;
+
+	private static final int LONG = 6;
+
+	private static final int FLOAT = 7;
+
+	private static final int DOUBLE = 8;
+
+	private static final int CHAR = 9;
+
+	private static final int BIG_DECIMAL = 10;
+
+	private static final int DATE = 11;
+
+	private static final int SQL_DATE = 12;
+
+	private static final int TIME = 13;
+
+	private static final int TIMESTAMP = 14;
+
+	private static final int BYTES = 15;
+
+	private final Class<?> beanClass;
+
+	private final int valueType;
+
+	private final Map<String, Method> setters;
+
+	private final RowMapper fallback;
+
+	private volatile Column[] columns;
+
+	public BeanRowMapper(Class<?> beanClass) {
+		this.beanClass = beanClass;
+		this.valueType = getType(beanClass);
+		this.fallback = new ConvertRowMapper(beanClass);
+		if (beanClass.isPrimitive() || beanClass.getName().startsWith("java.")
+				|| beanClass.isInterface() || Modifier.isAbstract(beanClass.getModifiers())) {
+			this.setters = null;
+		} else {
+			Map<String, Method> map = new HashMap<String, Method>();
+			for (Method method : beanClass.getMethods()) {
+				String name = method.getName();
+				if (name.length() > 3 && name.startsWith("set")
+						&& Modifier.isPublic(method.getModifiers())
+						&& method.getParameterTypes().length == 1) {
+					map.put(name.substring(3, 4).toLowerCase() + StringUtils.toCamelName(name.substring(4)), method);
+				}
+			}
+			this.setters = map;
+		}
+	}
+
+	@Override
+	public Object mapRow(ResultSet rs) throws Exception {
+		Column[] columns = this.columns;
+		if (columns == null) {
+			columns = resolve(rs.getMetaData());
+			this.columns = columns;
+		}
+		if (columns.length == 0) {
+			return fallback.mapRow(rs);
+		}
+		if (columns[0].setter == null) {
+			if (valueType == OBJECT) {
+				return ClassUtils.convertValue(rs.getObject(1), beanClass);
+			}
+			return getValue(rs, 1, valueType, beanClass);
+		}
+		Object bean = beanClass.newInstance();
+		Object[] arg = new Object[1];
+		for (Column column : columns) {
+			arg[0] = getValue(rs, column.index, column.type, column.cls);
+			if (arg[0] != null || column.cls.isPrimitive()) {
+				column.setter.invoke(bean, arg);
+			}
+		}
+		return bean;
+	}
+
+	/**
+	 * Resolve the column bindings, or an empty array to use the map conversion.
+	 */
+	private Column[] resolve(ResultSetMetaData rsmd) throws Exception {
+		int columnCount = rsmd.getColumnCount();
+		if (columnCount == 1) {
+			return new Column[] { new Column(1, null, beanClass) };
+		}
+		if (setters == null) {
+			return new Column[0];
+		}
+		Column[] columns = new Column[columnCount];
+		int n = 0;
+		for (int i = 1; i <= columnCount; i ++) {
+			String name = rsmd.getColumnLabel(i);
+			if (name == null)
+				name = rsmd.getColumnName(i);
+			if (name.indexOf('.') >= 0) {
+				return new Column[0];
+			}
+			Method setter = setters.get(name);
+			if (setter == null) {
+				setter = setters.get(StringUtils.toCamelName(name));
+			}
+			if (setter != null) {
+				columns[n ++] = new Column(i, setter, setter.getParameterTypes()[0]);
+			}
+		}
+		Column[] result = new Column[n];
+		System.arraycopy(columns, 0, result, 0, n);
+		return result;
+	}
+
+	private static int getType(Class<?> cls) {
+		if (String.class.equals(cls)) {
+			return STRING;
+		} else if (boolean.class.equals(cls) || Boolean.class.equals(cls)) {
+			return BOOLEAN;
+		} else if (byte.class.equals(cls) || Byte.class.equals(cls)) {
+			return BYTE;
+		} else if (short.class.equals(cls) || Short.class.equals(cls)) {
+			return SHORT;
+		} else if (int.class.equals(cls) || Integer.class.equals(cls)) {
+			return INT;
+		} else if (long.class.equals(cls) || Long.class.equals(cls)) {
+			return LONG;
+		} else if (float.class.equals(cls) || Float.class.equals(cls)) {
+			return FLOAT;
+		} else if (double.class.equals(cls) || Double.class.equals(cls)) {
+			return DOUBLE;
+		} else if (char.class.equals(cls) || Character.class.equals(cls)) {
+			return CHAR;
+		} else if (BigDecimal.class.equals(cls)) {
+			return BIG_DECIMAL;
+		} else if (java.sql.Date.class.equals(cls)) {
+			return SQL_DATE;
+		} else if (java.sql.Time.class.equals(cls)) {
+			return TIME;
+		} else if (java.sql.Timestamp.class.equals(cls)) {
+			return TIMESTAMP;
+		} else if (java.util.Date.class.equals(cls)) {
+			return DATE;
+		} else if (byte[].class.equals(cls)) {
+			return BYTES;
+		}
+		return OBJECT;
+	}
+
+	private static Object getValue(ResultSet rs, int index, int type, Class<?> cls) throws Exception {
+		Object value;
+		switch (type) {
+		case STRING:
+			return rs.getString(index);
+		case BOOLEAN:
+			value = rs.getBoolean(index);
+			break;
+		case BYTE:
+			value = rs.getByte(index);
+			break;
+		case SHORT:
+			value = rs.getShort(index);
+			break;
+		case INT:
+			value = rs.getInt(index);
+			break;
+		case LONG:
+			value = rs.getLong(index);
+			break;
+		case FLOAT:
+			value = rs.getFloat(index);
+			break;
+		case DOUBLE:
+			value = rs.getDouble(index);
+			break;
+		case CHAR:
+			String str = rs.getString(index);
+			if (str == null || str.length() == 0) {
+				return cls.isPrimitive() ? '\0' : null;
+			}
+			return str.charAt(0);
+		case BIG_DECIMAL:
+			return rs.getBigDecimal(index);
+		case DATE:
+		case TIMESTAMP:
+			return rs.getTimestamp(index);
+		case SQL_DATE:
+			return rs.getDate(index);
+		case TIME:
+			return rs.getTime(index);
+		case BYTES:
+			return rs.getBytes(index);
+		default:
+			value = rs.getObject(index);
+			return value == null || cls.isInstance(value) ? value : null;
+		}
+		if (! cls.isPrimitive() && rs.wasNull()) {
+			return null;
+		}
+		return value;
+	}
+
+	private static final class Column {
+
+		final int index;
+
+		final Method setter;
+
+		final Class<?> cls;
+
+		final int type;
+
+		Column(int index, Method setter, Class<?> cls) {
+			this.index = index;
+			this.setter = setter;
+			this.cls = cls;
+			this.type = getType(cls);
+		}
+
+	}
+
+}
@@ -0,0 +1,264 @@
+package mvcoc.models;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled cache key of a model method, configured by &lt;cacheName&gt;.key in
+ * the model cache properties as comma separated ${var} expressions of the
+ * sql, e.g. "id" or "0, user.id".
+ *
+ * Without the config, the key is made of all the arguments, with a bean
+ * argument keyed by its name property if it has one.
+ *
+ * A single value is the key itself: an integral number, or a string of
+ * one such as "5", as a {@link LongKey}, any other value as its string.
+ * So a string and a number id of a get and a remove method still match.
+ * Multiple values are a {@link CompositeKey}.
+ */
+public abstract class CacheKey {
+
+	private static final Pattern COMMA_PATTERN = Pattern.compile("\\s*\\,\\s*");
+
+	private static final String EMPTY_KEY = "";
+
+	public abstract Object getKey(Object[] args) throws Exception;
+
+	/**
+	 * Compile the key expression, or the default key if it is empty,
+	 * against the argument types of the method, where a null type marks an
+	 * argument that is not bound.
+	 */
+	public static CacheKey compile(String expression, Class<?>[] parameterTypes, String[] parameterNames) {
+		StringBuilder source = new StringBuilder();
+		if (expression == null || expression.trim().length() == 0) {
+			int single = -1;
+			for (int i = 0; i < parameterTypes.length; i ++) {
+				if (parameterTypes[i] != null) {
+					single = single == -1 ? i : -2;
+					source.append("${").append(i).append(hasName(parameterTypes[i]) ? ".name}" : "}");
+				}
+			}
+			// the argument itself, as a ${0} of a single array argument is its element
+			if (single >= 0 && ! hasName(parameterTypes[single])) {
+				return new ArgumentKey(single);
+			}
+		} else {
+			for (String var : COMMA_PATTERN.split(expression.trim())) {
+				source.append("${").append(var).append("}");
+			}
+		}
+		if (source.length() == 0) {
+			return new ConstantKey(EMPTY_KEY);
+		}
+		SqlTemplate template = SqlTemplate.compile(source.toString(), parameterTypes, parameterNames);
+		if (template.getNames().length == 1) {
+			return new SingleKey(template);
+		}
+		return new MultipleKey(template);
+	}
+
+	private static boolean hasName(Class<?> type) {
+		if (type.isPrimitive() || type.isArray() || Comparable.class.isAssignableFrom(type)
+				|| Map.class.isAssignableFrom(type) || Collection.class.isAssignableFrom(type)
+				|| Object.class.equals(type)) {
+			return false;
+		}
+		try {
+			Method getter = type.getMethod("getName", new Class<?>[0]);
+			return ! void.class.equals(getter.getReturnType());
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	static Object toKey(Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			return new LongKey(((Number) value).longValue());
+		}
+		String str = String.valueOf(value);
+		if (isLong(str)) {
+			return new LongKey(Long.parseLong(str));
+		}
+		return str;
+	}
+
+	/**
+	 * Whether the string is a long as written by Long.toString, without a
+	 * plus sign or leading zeros, so it equals the string of its LongKey.
+	 */
+	private static boolean isLong(String str) {
+		int length = str.length();
+		int start = length > 0 && str.charAt(0) == '-' ? 1 : 0;
+		if (length == start || length > 20) {
+			return false;
+		}
+		if (str.charAt(start) == '0') {
+			return length == 1;
+		}
+		for (int i = start; i < length; i ++) {
+			char c = str.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		if (length - start < 19) {
+			return true;
+		}
+		try {
+			Long.parseLong(str);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static final class ConstantKey extends CacheKey {
+
+		private final Object key;
+
+		ConstantKey(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public Object getKey(Object[] args) {
+			return key;
+		}
+
+	}
+
+	private static final class ArgumentKey extends CacheKey {
+
+		private final int index;
+
+		ArgumentKey(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public Object getKey(Object[] args) {
+			Object key = toKey(args == null ? null : args[index]);
+			return key == null ? EMPTY_KEY : key;
+		}
+
+	}
+
+	private static final class SingleKey extends CacheKey {
+
+		private final SqlTemplate template;
+
+		SingleKey(SqlTemplate template) {
+			this.template = template;
+		}
+
+		@Override
+		public Object getKey(Object[] args) throws Exception {
+			Object key = toKey(template.getParameter(0, args));
+			return key == null ? EMPTY_KEY : key;
+		}
+
+	}
+
+	private static final class MultipleKey extends CacheKey {
+
+		private final SqlTemplate template;
+
+		MultipleKey(SqlTemplate template) {
+			this.template = template;
+		}
+
+		@Override
+		public Object getKey(Object[] args) throws Exception {
+			Object[] values = template.getParameters(args);
+			for (int i = 0; i < values.length; i ++) {
+				values[i] = toKey(values[i]);
+			}
+			return new CompositeKey(values);
+		}
+
+	}
+
+	/**
+	 * The key of an integral value, equal for the same value of any integral type.
+	 */
+	public static final class LongKey implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long value;
+
+		public LongKey(long value) {
+			this.value = value;
+		}
+
+		public long getValue() {
+			return value;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (value ^ (value >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof LongKey && ((LongKey) obj).value == value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+
+	}
+
+	/**
+	 * The key of multiple values, equal if all the values are equal.
+	 */
+	public static final class CompositeKey implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Object[] values;
+
+		private final int hash;
+
+		public CompositeKey(Object[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (! (obj instanceof CompositeKey)) {
+				return false;
+			}
+			CompositeKey other = (CompositeKey) obj;
+			return hash == other.hash && Arrays.equals(values, other.values);
+		}
+
+		@Override
+		public String toString() {
+			return Arrays.toString(values);
+		}
+
+	}
+
+}
@@ -0,0 +1,21 @@
+package mvcoc.models;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Route a select to the primary datasource instead of a replica, for reads
+ * that must see the latest writes.
+ *
+ * The selects loading a @CacheResult cache are always routed to the primary,
+ * so the cache is not filled with a row older than the write that evicted it.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Consistent {
+
+}
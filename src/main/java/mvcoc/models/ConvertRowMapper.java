@@ -0,0 +1,40 @@
+package mvcoc.models;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.HashMap;
+import java.util.Map;
+
+import mvcoc.util.ClassUtils;
+
+/**
+ * Map single column rows to the column value, and multi column rows to a map
+ * keyed by column label, converted to the bean class if present.
+ */
+public class ConvertRowMapper implements RowMapper {
+
+	private final Class<?> beanClass;
+
+	public ConvertRowMapper(Class<?> beanClass) {
+		this.beanClass = beanClass;
+	}
+
+	@Override
+	public Object mapRow(ResultSet rs) throws Exception {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int columnCount = rsmd.getColumnCount();
+		if (columnCount == 1) {
+			Object value = rs.getObject(1);
+			return beanClass == null ? value : ClassUtils.convertValue(value, beanClass);
+		}
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (int i = 1; i <= columnCount; i++) {
+			String name = rsmd.getColumnLabel(i);
+			if (name == null)
+				name = rsmd.getColumnName(i);
+			map.put(name, rs.getObject(i));
+		}
+		return beanClass == null ? map : ClassUtils.convertBean(map, beanClass);
+	}
+
+}
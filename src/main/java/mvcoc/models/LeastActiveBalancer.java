@@ -0,0 +1,35 @@
+package mvcoc.models;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tomcat.dbcp.dbcp.BasicDataSource;
+
+/**
+ * Route selects to the replica with the fewest active connections, starting
+ * the scan at a rotating offset so that idle replicas share the load.
+ */
+public class LeastActiveBalancer implements Balancer {
+
+	private final AtomicInteger sequence = new AtomicInteger();
+
+	@Override
+	public BasicDataSource select(BasicDataSource[] replicas) {
+		int length = replicas.length;
+		int offset = (sequence.getAndIncrement() & Integer.MAX_VALUE) % length;
+		BasicDataSource least = null;
+		int leastActive = Integer.MAX_VALUE;
+		for (int i = 0; i < length; i ++) {
+			BasicDataSource replica = replicas[(offset + i) % length];
+			int active = replica.getNumActive();
+			if (active < leastActive) {
+				least = replica;
+				leastActive = active;
+				if (active == 0) {
+					break;
+				}
+			}
+		}
+		return least;
+	}
+
+}
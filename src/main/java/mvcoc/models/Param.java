@@ -0,0 +1,25 @@
+package mvcoc.models;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Name a model method argument for the sql, e.g.
+ *
+ * User[] findUsers(@Param("role") String role, @Param("city") String city);
+ *
+ * findUsers=select * from user where role = ${role} and city = ${city}
+ *
+ * Arguments can also be referred by index, e.g. ${0}, ${1.name}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Param {
+
+	String value();
+
+}
@@ -0,0 +1,255 @@
+package mvcoc.models;
+
+import java.io.Serializable;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mvcoc.caches.Cache;
+import mvcoc.util.PropertiesUtils;
+
+/**
+ * The expiry of the results in a {@link Cache}, configured in milliseconds by:
+ *
+ * &lt;cacheName&gt;.expireAfterWrite (0, no expiry, by default)
+ * &lt;cacheName&gt;.expireAfterAccess
+ * &lt;cacheName&gt;.refreshAfterWrite
+ * &lt;cacheName&gt;.cacheNull (false by default)
+ * &lt;cacheName&gt;.nullExpireAfterWrite (60000 by default)
+ *
+ * A result older than refreshAfterWrite is still returned, and reloaded in
+ * the background, so a hot key is refreshed before it expires. The reload
+ * is skipped, never run by the reader, if the executor is full or shut down.
+ *
+ * A null result, e.g. of a missing row, or of a list or array query without
+ * rows, is cached only if cacheNull is set, as an entry without value
+ * expiring after nullExpireAfterWrite. A failed load is never cached.
+ *
+ * The concurrent misses of a key are coalesced into a single load, whose
+ * result is shared by all of them.
+ */
+public class ResultCache {
+
+	public static final String EXPIRE_AFTER_WRITE_KEY = ".expireAfterWrite";
+
+	public static final String EXPIRE_AFTER_ACCESS_KEY = ".expireAfterAccess";
+
+	public static final String REFRESH_AFTER_WRITE_KEY = ".refreshAfterWrite";
+
+	public static final String CACHE_NULL_KEY = ".cacheNull";
+
+	public static final String NULL_EXPIRE_AFTER_WRITE_KEY = ".nullExpireAfterWrite";
+
+	private final Cache cache;
+
+	private final long expireAfterWrite;
+
+	private final long expireAfterAccess;
+
+	private final long refreshAfterWrite;
+
+	private final boolean cacheNull;
+
+	private final long nullExpireAfterWrite;
+
+	private final ExecutorService executor;
+
+	private final ConcurrentMap<Object, Boolean> refreshing = new ConcurrentHashMap<Object, Boolean>();
+
+	private final ConcurrentMap<Object, FutureTask<Object>> loading = new ConcurrentHashMap<Object, FutureTask<Object>>();
+
+	private final AtomicLong loads = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public ResultCache(String cacheName, Properties properties, Cache cache, ExecutorService executor) {
+		this.cache = cache;
+		this.expireAfterWrite = PropertiesUtils.getInt(properties, cacheName + EXPIRE_AFTER_WRITE_KEY, 0);
+		this.expireAfterAccess = PropertiesUtils.getInt(properties, cacheName + EXPIRE_AFTER_ACCESS_KEY, 0);
+		this.refreshAfterWrite = PropertiesUtils.getInt(properties, cacheName + REFRESH_AFTER_WRITE_KEY, 0);
+		this.cacheNull = PropertiesUtils.getBoolean(properties, cacheName + CACHE_NULL_KEY, false);
+		this.nullExpireAfterWrite = PropertiesUtils.getInt(properties, cacheName + NULL_EXPIRE_AFTER_WRITE_KEY, 60 * 1000);
+		this.executor = executor;
+	}
+
+	/**
+	 * The cached result of the key, or the result of the loader, cached if
+	 * not null or if null results are cached.
+	 */
+	public Object get(Object key, Callable<Object> loader) throws Exception {
+		long now = System.currentTimeMillis();
+		Entry entry = (Entry) cache.get(key);
+		if (entry != null) {
+			if (! isExpired(entry, now)) {
+				if (entry.value == null) {
+					return null;
+				}
+				if (refreshAfterWrite > 0 && now - entry.written >= refreshAfterWrite) {
+					refresh(key, entry, loader);
+				}
+				// the access time is written back at most twice per window,
+				// not if the entry is removed or replaced meanwhile
+				if (expireAfterAccess > 0 && now - entry.accessed >= expireAfterAccess / 2) {
+					cache.replace(key, entry, new Entry(entry.value, entry.written, now));
+				}
+				return entry.value;
+			}
+			cache.remove(key, entry);
+		}
+		return load(key, loader);
+	}
+
+	private Object load(Object key, Callable<Object> loader) throws Exception {
+		FutureTask<Object> task = new FutureTask<Object>(loader);
+		FutureTask<Object> running = loading.putIfAbsent(key, task);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return getResult(running);
+		}
+		loads.incrementAndGet();
+		boolean current = false;
+		try {
+			task.run();
+			Object value = getResult(task);
+			// not cached if the key is removed while loading, the value may be stale
+			current = loading.remove(key, task);
+			if (current && (value != null || cacheNull)) {
+				long now = System.currentTimeMillis();
+				cache.put(key, new Entry(value, now, now));
+			}
+			return value;
+		} finally {
+			if (! current) {
+				loading.remove(key, task);
+			}
+		}
+	}
+
+	private static Object getResult(FutureTask<Object> task) throws Exception {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		if (entry.value == null) {
+			return now - entry.written >= nullExpireAfterWrite;
+		}
+		return (expireAfterWrite > 0 && now - entry.written >= expireAfterWrite)
+				|| (expireAfterAccess > 0 && now - entry.accessed >= expireAfterAccess);
+	}
+
+	private void refresh(final Object key, final Entry entry, final Callable<Object> loader) {
+		if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+			return;
+		}
+		final Thread reader = Thread.currentThread();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// dropped if the full executor runs it on the reader, which has a valid entry
+						if (Thread.currentThread() == reader) {
+							return;
+						}
+						Object value = loader.call();
+						Entry current = (Entry) cache.get(key);
+						// not if the entry is removed or replaced meanwhile,
+						// but the access time may have been written back
+						if (current != null && current.written == entry.written) {
+							if (value != null || cacheNull) {
+								long now = System.currentTimeMillis();
+								cache.replace(key, current, new Entry(value, now, now));
+							} else {
+								cache.remove(key, current);
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						refreshing.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// dropped after shutdown, the entry is still returned
+			refreshing.remove(key);
+		}
+	}
+
+	/**
+	 * The loads of missed keys.
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * The misses that waited for the load of another miss of the key.
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public void remove(Object key) {
+		// later misses do not wait for a load started before the removal
+		loading.remove(key);
+		cache.remove(key);
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * A cached result, equal only to itself or its serialized copies, so the
+	 * conditional replace and remove of the cache match this very write.
+	 */
+	private static final class Entry implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final AtomicLong VERSIONS = new AtomicLong();
+
+		final Object value;
+
+		final long written;
+
+		final long accessed;
+
+		final long version = VERSIONS.incrementAndGet();
+
+		Entry(Object value, long written, long accessed) {
+			this.value = value;
+			this.written = written;
+			this.accessed = accessed;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (version ^ (version >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Entry && ((Entry) obj).version == version;
+		}
+
+	}
+
+}
@@ -0,0 +1,102 @@
+package mvcoc.models;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming result of a model query returning Iterator&lt;T&gt; or Iterable&lt;T&gt;.
+ *
+ * Rows are mapped one at a time while iterating, and the connection is held
+ * until the last row is read or the iterator is closed, so a caller that stops
+ * early must call {@link #close()}. It can only be iterated once.
+ */
+public class ResultIterator<T> implements Iterator<T>, Iterable<T>, Closeable {
+
+	private final Connection conn;
+
+	private final Statement stmt;
+
+	private final ResultSet rs;
+
+	private final RowMapper rowMapper;
+
+	private boolean fetched;
+
+	private boolean closed;
+
+	public ResultIterator(Connection conn, Statement stmt, ResultSet rs, RowMapper rowMapper) {
+		this.conn = conn;
+		this.stmt = stmt;
+		this.rs = rs;
+		this.rowMapper = rowMapper;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		if (! fetched) {
+			try {
+				fetched = rs.next();
+			} catch (Exception e) {
+				close();
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			if (! fetched) {
+				close();
+			}
+		}
+		return fetched;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (! hasNext()) {
+			throw new NoSuchElementException();
+		}
+		fetched = false;
+		try {
+			return (T) rowMapper.mapRow(rs);
+		} catch (Exception e) {
+			close();
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			rs.close();
+		} catch (Exception e) {
+		}
+		try {
+			stmt.close();
+		} catch (Exception e) {
+		}
+		try {
+			conn.close();
+		} catch (Exception e) {
+		}
+	}
+
+}
@@ -0,0 +1,19 @@
+package mvcoc.models;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tomcat.dbcp.dbcp.BasicDataSource;
+
+/**
+ * Route selects to the replicas in turn.
+ */
+public class RoundRobinBalancer implements Balancer {
+
+	private final AtomicInteger sequence = new AtomicInteger();
+
+	@Override
+	public BasicDataSource select(BasicDataSource[] replicas) {
+		return replicas[(sequence.getAndIncrement() & Integer.MAX_VALUE) % replicas.length];
+	}
+
+}
@@ -0,0 +1,12 @@
+package mvcoc.models;
+
+/**
+ * Callback argument of a streaming model query, invoked once per row.
+ *
+ * e.g. void exportUsers(RowHandler&lt;User&gt; handler);
+ */
+public interface RowHandler<T> {
+
+	void handle(T row) throws Exception;
+
+}
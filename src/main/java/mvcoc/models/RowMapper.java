@@ -0,0 +1,12 @@
+package mvcoc.models;
+
+import java.sql.ResultSet;
+
+/**
+ * Map the current row of a result set to a model value.
+ */
+public interface RowMapper {
+
+	Object mapRow(ResultSet rs) throws Exception;
+
+}
@@ -6,118 +6,144 @@ import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Matcher;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 import javax.cache.annotation.CachePut;
 import javax.cache.annotation.CacheRemoveEntry;
 import javax.cache.annotation.CacheResult;
 
-import mvcoc.util.ClassUtils;
-import mvcoc.util.ConcurrentLinkedHashMap;
-
-import org.apache.tomcat.dbcp.dbcp.BasicDataSource;
+import mvcoc.caches.Cache;
 
 public class SqlInvocationHandler implements InvocationHandler {
 
-	private static final Pattern VAR_PATTERN = Pattern.compile("\\$\\{([_.0-9A-Za-z]+)\\}");
-
 	private static final Pattern COMMA_PATTERN = Pattern.compile("\\,");
 
-	private final Properties sqls;
+	private volatile Properties sqls;
 
 	private final Properties cacheConfigs;
 	
-	private final BasicDataSource datasource;
+	private final SqlModel model;
 	
-	private final ConcurrentMap<String, Map<String, Object>> caches = new ConcurrentHashMap<String, Map<String,Object>>();
+	private final ConcurrentMap<String, ResultCache> caches = new ConcurrentHashMap<String, ResultCache>();
+
+	private final ConcurrentMap<Method, SqlMethod> plans = new ConcurrentHashMap<Method, SqlMethod>();
 	
-	public SqlInvocationHandler(BasicDataSource datasource, Properties sqls, Properties cacheConfigs) {
-		this.datasource = datasource;
+	public SqlInvocationHandler(SqlModel model, Properties sqls, Properties cacheConfigs) {
+		this.model = model;
 		this.sqls = sqls;
 		this.cacheConfigs = cacheConfigs;
 	}
 	
+	/**
+	 * Swap in the reloaded sqls, dropping only the plans whose sql changed, so
+	 * the other plans and the caches stay warm.
+	 */
+	public void reload(Properties sqls) {
+		Properties old = this.sqls;
+		this.sqls = sqls;
+		for (SqlMethod plan : plans.values()) {
+			String name = plan.getMethod().getName();
+			String sql = sqls.getProperty(name);
+			if (sql == null || ! sql.equals(old.getProperty(name))) {
+				plans.remove(plan.getMethod(), plan);
+			}
+		}
+	}
+
+	/**
+	 * The result caches created so far, by cache name.
+	 */
+	public Map<String, ResultCache> getCaches() {
+		return Collections.unmodifiableMap(caches);
+	}
+
 	public void validate(Object proxy, Method method, Object[] args) throws Throwable {
 		method.getParameterTypes();
 	}
 	
 	@Override
-	public Object invoke(Object proxy, Method method, Object[] args)
+	public Object invoke(Object proxy, Method method, final Object[] args)
 			throws Throwable {
 		validate(proxy, method, args);
-		CacheResult cacheResult = method.getAnnotation(CacheResult.class);
-		if (cacheResult != null) {
-			Map<String, Object> cache = getCache(cacheResult.cacheName());
-			String key = getCacheKey(args);
-			Object result = cache.get(key);
-			if (result != null) {
-				return result;
-			}
-			result = invokeSql(proxy, method, args);
-			if (result != null) {
-				cache.put(key, result);
-			}
-			return result;
+		final SqlMethod plan = getPlan(method);
+		if (plan.isAsync()) {
+			return model.getExecutor().submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					try {
+						return invoke(plan, args);
+					} catch (Exception e) {
+						throw e;
+					} catch (Error e) {
+						throw e;
+					} catch (Throwable e) {
+						throw new ExecutionException(e.getMessage(), e);
+					}
+				}
+			});
 		}
-		Object result = invokeSql(proxy, method, args);
-		CacheRemoveEntry cacheRemoveEntry = method.getAnnotation(CacheRemoveEntry.class);
-		if (cacheRemoveEntry != null) {
-			String cacheNames = cacheRemoveEntry.cacheName();
-			for (String cacheName : COMMA_PATTERN.split(cacheNames)) {
-				Map<String, Object> cache = getCache(cacheName);
-				String key = getCacheKey(args);
-				cache.remove(key);
+		return invoke(plan, args);
+	}
+
+	private Object invoke(final SqlMethod plan, final Object[] args) throws Throwable {
+		if (plan.getCacheResult() != null) {
+			ResultCache cache = getCache(plan.getCacheResult());
+			Object key = plan.getCacheResultKey().getKey(args);
+			try {
+				return cache.get(key, new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						try {
+							return invokeSql(plan, args, true);
+						} catch (Exception e) {
+							throw e;
+						} catch (Error e) {
+							throw e;
+						} catch (Throwable e) {
+							throw new ExecutionException(e.getMessage(), e);
+						}
+					}
+				});
+			} catch (ExecutionException e) {
+				// the failure is not cached, only the default result is returned
+				return plan.getDefaultResult();
 			}
-		} else {
-			CachePut cachePut = method.getAnnotation(CachePut.class);
-			if (cachePut != null) {
-				String cacheNames = cachePut.cacheName();
-				for (String cacheName : COMMA_PATTERN.split(cacheNames)) {
-					Map<String, Object> cache = getCache(cacheName);
-					String key = getCacheKey(args);
-					cache.remove(key);
+		}
+		Object result = invokeSql(plan, args, false);
+		String[] cacheRemoves = plan.getCacheRemoves();
+		CacheKey[] cacheRemoveKeys = plan.getCacheRemoveKeys();
+		for (int i = 0; i < cacheRemoves.length; i ++) {
+			ResultCache cache = getCache(cacheRemoves[i]);
+			if (plan.isBatch()) {
+				for (Object element : toCollection(plan.getArgument(args))) {
+					cache.remove(cacheRemoveKeys[i].getKey(new Object[] { element }));
 				}
+			} else {
+				cache.remove(cacheRemoveKeys[i].getKey(args));
 			}
 		}
 		return result;
 	}
 	
-	private String getCacheKey(Object[] args) {
-		if (args == null || args.length == 0) {
-			return "";
-		}
-		Object value = args[0];
-		if (value == null) {
-			return "";
-		}
-		if (value instanceof String) {
-			return (String) value;
-		}
-		if (value instanceof Number) {
-			return String.valueOf(value);
-		}
-		try {
-			return String.valueOf(value.getClass().getMethod("getName", new Class<?>[0]).invoke(value, new Object[0]));
-		} catch (Exception e) {
-			return String.valueOf(value);
-		}
-	}
-	
-	private Map<String, Object> getCache(String cacheName) {
-		Map<String, Object> cache = caches.get(cacheName);
+	private ResultCache getCache(String cacheName) {
+		ResultCache cache = caches.get(cacheName);
 		if (cache == null) {
-			int capacity = Integer.parseInt(cacheConfigs.getProperty(cacheName + ".capacity", "1000").trim());
-			cache = new ConcurrentLinkedHashMap<String, Object>(capacity);
-			Map<String, Object> old = caches.putIfAbsent(cacheName, cache);
+			Cache store = model.getCacheProvider(cacheConfigs.getProperty(cacheName + ".provider"))
+					.createCache(cacheName, cacheConfigs);
+			cache = new ResultCache(cacheName, cacheConfigs, store, model.getExecutor());
+			ResultCache old = caches.putIfAbsent(cacheName, cache);
 			if (old != null) {
 				cache = old;
 			}
@@ -125,95 +151,91 @@ public class SqlInvocationHandler implements InvocationHandler {
 		return cache;
 	}
 
-	@SuppressWarnings("unchecked")
+	private SqlMethod getPlan(Method method) {
+		SqlMethod plan = plans.get(method);
+		if (plan == null) {
+			Properties sqls = this.sqls;
+			String sql = sqls.getProperty(method.getName());
+			if (sql == null) {
+				throw new IllegalStateException("No such sql " + method.getName() + " for method " + method);
+			}
+			String cacheResult = null;
+			String[] cacheRemoves = new String[0];
+			CacheResult cacheResultAnnotation = method.getAnnotation(CacheResult.class);
+			if (cacheResultAnnotation != null) {
+				cacheResult = cacheResultAnnotation.cacheName();
+			} else {
+				CacheRemoveEntry cacheRemoveEntry = method.getAnnotation(CacheRemoveEntry.class);
+				if (cacheRemoveEntry != null) {
+					cacheRemoves = COMMA_PATTERN.split(cacheRemoveEntry.cacheName());
+				} else {
+					CachePut cachePut = method.getAnnotation(CachePut.class);
+					if (cachePut != null) {
+						cacheRemoves = COMMA_PATTERN.split(cachePut.cacheName());
+					}
+				}
+			}
+			plan = new SqlMethod(method, sql, cacheResult, cacheRemoves, cacheConfigs);
+			SqlMethod old = plans.putIfAbsent(method, plan);
+			if (old != null) {
+				plan = old;
+			} else if (sqls != this.sqls) {
+				plans.remove(method, plan);
+			}
+		}
+		return plan;
+	}
+
+	private Connection getConnection(SqlMethod plan) throws SQLException {
+		if (plan.isReadOnly()) {
+			return model.getReadDatasource().getConnection();
+		}
+		return model.getDatasource().getConnection();
+	}
+
 	public Object invokeSql(Object proxy, Method method, Object[] args)
 			throws Throwable {
-		Object arg = args == null || args.length == 0 ? null : args[0];
-		String sql = sqls.getProperty(method.getName());
-		StringBuffer buf = new StringBuffer();
-		List<Object> params = new ArrayList<Object>();
-        Matcher matcher = VAR_PATTERN.matcher(sql);
-		while(matcher.find()) {
-			String var = matcher.group(1);
-            matcher.appendReplacement(buf, "?");
-            if (arg == null) {
-            	params.add(null);
-            } else if (arg instanceof String || arg instanceof Number || arg.getClass().isPrimitive()) {
-            	params.add(arg);
-    		} else {
-    			params.add(ClassUtils.getProperty(arg, var));
-    		}
-        }
-        matcher.appendTail(buf);
-        sql = buf.toString().trim();
+		return invokeSql(getPlan(method), args, false);
+	}
+
+	/**
+	 * Execute the sql, returning the default result on failure, or throwing
+	 * an ExecutionException if rethrow is set, so a cache load does not cache it.
+	 */
+	private Object invokeSql(SqlMethod plan, Object[] args, boolean rethrow) throws Throwable {
+		if (plan.isBatch()) {
+			return invokeBatch(plan, toCollection(plan.getArgument(args)), rethrow);
+		}
+		if (plan.isStreaming()) {
+			return invokeStreaming(plan, args, plan.getRowHandler(args), rethrow);
+		}
+		SqlTemplate template = plan.getTemplate();
+		String sql = template.getSql();
+		Object[] params = template.getParameters(args);
 		try {
-            Connection conn = datasource.getConnection();
+            Connection conn = getConnection(plan);
             try {
-	            PreparedStatement stmt = conn.prepareStatement(sql);
-            	if (params.size() > 0) {
-            		for (int i = 0, n = params.size(); i < n; i ++) {
-            			stmt.setObject(i + 1, params.get(i));
-            		}
-            	}
+	            PreparedStatement stmt = model.getStatementStatistics().prepareStatement(conn, sql);
+            	template.bind(stmt, params);
                 try {
-                	if (sql.startsWith("select")) {
+                	if (template.isSelect()) {
 	                    ResultSet rs = stmt.executeQuery();
 	                    try {
-	                        ResultSetMetaData rsmd = rs.getMetaData();
+	                        RowMapper rowMapper = plan.getRowMapper();
 	                        List<Object> list = null;
 	                        while (rs.next()) {
 	                            if (list == null)
 	                                list = new ArrayList<Object>();
-	                            int columnCount = rsmd.getColumnCount();
-	                        	if (columnCount == 1) {
-	                        	    list.add(rs.getObject(1));
-	                        	} else {
-	                        		Map<String, Object> map = new HashMap<String, Object>();
-	                                for (int i = 1; i <= columnCount; i++) {
-	                                	String name = rsmd.getColumnLabel(i);
-	                                	if (name == null)
-	                                		name = rsmd.getColumnName(i);
-	                                    map.put(name, rs.getObject(i));
-	                                }
-	                                list.add(map);
-	                        	}
-	                        }
-	                        if (list == null || list.size() == 0) {
-	                        	return null;
-	                        }
-	                        if (method.getReturnType().isAssignableFrom(ArrayList.class)) {
-	                        	return list;
-	                        } else if (method.getReturnType().isArray()) {
-	                        	Class<?> beanClass = method.getReturnType().getComponentType();
-	                        	Object array = Array.newInstance(beanClass, list.size());
-	                        	for (int i = 0; i < list.size(); i ++) {
-	                        		Object value = list.get(i);
-	                        		if (value instanceof Map) {
-	                        			value = ClassUtils.convertBean((Map<String, Object>) value, beanClass);
-	                        		}
-	                        		Array.set(array, i, value);
-	                        	}
-	                        	return array;
-	                        } else {
-	                        	Object value = list.get(0);
-                        		if (value instanceof Map) {
-                        			value = ClassUtils.convertBean((Map<String, Object>) value, method.getReturnType());
-                        		}
-	                        	return ClassUtils.convertValue(value, method.getReturnType());
+	                            list.add(rowMapper.mapRow(rs));
+	                            if (! plan.isMultiple())
+	                                break;
 	                        }
+	                        return plan.toResult(list);
 	                    } finally {
 	                        rs.close();
 	                    }
                 	} else {
-                		int row = stmt.executeUpdate();
-                		if (boolean.class.equals(method.getReturnType())
-                				|| method.getReturnType().isAssignableFrom(Boolean.class)) {
-                			return row > 0;
-                		} else if (int.class.equals(method.getReturnType())
-                				|| method.getReturnType().isAssignableFrom(Integer.class)) {
-                			return row;
-                		}
-                		return null;
+                		return plan.toResult(stmt.executeUpdate());
 					}
                 } finally {
                     stmt.close();
@@ -222,20 +244,128 @@ public class SqlInvocationHandler implements InvocationHandler {
                 conn.close();
             }
         } catch (Exception e) {
-        	System.err.println("Failed to execute sql "+ sql + " with " + params);
+        	System.err.println("Failed to execute sql "+ sql + " with " + Arrays.toString(params));
             e.printStackTrace();
-            if (boolean.class.equals(method.getReturnType())
-    				|| Boolean.class.equals(method.getReturnType())) {
-    			return false;
-    		} else if (char.class.equals(method.getReturnType())
-    				|| Character.class.equals(method.getReturnType())) {
-    			return '\0';
-    		} else if (method.getReturnType().isPrimitive()
-    				|| Number.class.isAssignableFrom(method.getReturnType())) {
-    			return 0;
-    		}
-            return null;
+            if (rethrow) {
+            	throw new ExecutionException(e.getMessage(), e);
+            }
+            return plan.getDefaultResult();
         }
 	}
 
+	private Object invokeBatch(SqlMethod plan, Collection<?> elements, boolean rethrow) throws Throwable {
+		if (elements.isEmpty()) {
+			return plan.toResult(new int[0]);
+		}
+		SqlTemplate template = plan.getTemplate();
+		String sql = template.getSql();
+		int batchSize = model.getBatchSize();
+		int[] counts = new int[elements.size()];
+		int executed = 0;
+		Object[] element = new Object[1];
+		Object[] params = null;
+		try {
+			Connection conn = getConnection(plan);
+			try {
+				PreparedStatement stmt = model.getStatementStatistics().prepareStatement(conn, sql);
+				try {
+					int pending = 0;
+					for (Object value : elements) {
+						element[0] = value;
+						params = template.getParameters(element);
+						template.bind(stmt, params);
+						stmt.addBatch();
+						if (++ pending >= batchSize) {
+							executed = copyCounts(stmt.executeBatch(), counts, executed);
+							pending = 0;
+						}
+					}
+					if (pending > 0) {
+						executed = copyCounts(stmt.executeBatch(), counts, executed);
+					}
+					return plan.toResult(counts);
+				} finally {
+					stmt.close();
+				}
+			} finally {
+				conn.close();
+			}
+		} catch (Exception e) {
+			System.err.println("Failed to execute batch sql "+ sql + " at row " + executed + " with " + Arrays.toString(params));
+			e.printStackTrace();
+			if (rethrow) {
+				throw new ExecutionException(e.getMessage(), e);
+			}
+			return plan.getDefaultResult();
+		}
+	}
+
+	private static int copyCounts(int[] source, int[] counts, int offset) {
+		int n = Math.min(source.length, counts.length - offset);
+		System.arraycopy(source, 0, counts, offset, n);
+		return offset + n;
+	}
+
+	private static Collection<?> toCollection(Object arg) {
+		if (arg == null) {
+			return Collections.emptyList();
+		}
+		if (arg instanceof Collection) {
+			return (Collection<?>) arg;
+		}
+		int length = Array.getLength(arg);
+		List<Object> list = new ArrayList<Object>(length);
+		for (int i = 0; i < length; i ++) {
+			list.add(Array.get(arg, i));
+		}
+		return list;
+	}
+
+	private Object invokeStreaming(SqlMethod plan, Object[] args, RowHandler<Object> handler, boolean rethrow) throws Throwable {
+		SqlTemplate template = plan.getTemplate();
+		String sql = template.getSql();
+		Object[] params = template.getParameters(args);
+		try {
+			ResultIterator<Object> iterator = null;
+			Connection conn = getConnection(plan);
+			try {
+				PreparedStatement stmt = model.getStatementStatistics().prepareStatement(conn, sql);
+				try {
+					template.bind(stmt, params);
+					stmt.setFetchSize(model.getFetchSize());
+					ResultSet rs = stmt.executeQuery();
+					iterator = new ResultIterator<Object>(conn, stmt, rs, plan.getRowMapper());
+				} finally {
+					if (iterator == null) {
+						stmt.close();
+					}
+				}
+			} finally {
+				if (iterator == null) {
+					conn.close();
+				}
+			}
+			if (handler == null) {
+				return iterator;
+			}
+			try {
+				int count = 0;
+				while (iterator.hasNext()) {
+					handler.handle(iterator.next());
+					count ++;
+				}
+				return plan.toResult(count);
+			} finally {
+				iterator.close();
+			}
+		} catch (Exception e) {
+			System.err.println("Failed to execute sql "+ sql + " with " + Arrays.toString(params));
+			e.printStackTrace();
+			if (rethrow) {
+				throw new ExecutionException(e.getMessage(), e);
+			}
+			return plan.getDefaultResult();
+		}
+	}
+
 }
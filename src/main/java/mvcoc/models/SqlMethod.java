@@ -0,0 +1,395 @@
+package mvcoc.models;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+/**
+ * Invocation plan of a model method, computed once per {@link Method}.
+ *
+ * Holds the compiled sql, the cache behaviour and the result shape, so that
+ * invoking the method does no annotation or return type inspection.
+ */
+public final class SqlMethod {
+
+	public static enum ResultKind {
+		LIST, ARRAY, OBJECT, ITERATOR, HANDLER, BOOLEAN, INTEGER, COUNTS, NONE
+	}
+
+	private final Method method;
+
+	private final SqlTemplate template;
+
+	private final boolean batch;
+
+	private final boolean readOnly;
+
+	private final boolean async;
+
+	private final int argumentIndex;
+
+	private final int handlerIndex;
+
+	private final String cacheResult;
+
+	private final String[] cacheRemoves;
+
+	private final CacheKey cacheResultKey;
+
+	private final CacheKey[] cacheRemoveKeys;
+
+	private final ResultKind resultKind;
+
+	private final Class<?> resultType;
+
+	private final RowMapper rowMapper;
+
+	private final Object defaultResult;
+
+	private final boolean countResult;
+
+	public SqlMethod(Method method, String sql, String cacheResult, String[] cacheRemoves, Properties cacheConfigs) {
+		this.method = method;
+		// the names are trimmed once, for the key config and the cache alike
+		this.cacheRemoves = new String[cacheRemoves.length];
+		for (int i = 0; i < cacheRemoves.length; i ++) {
+			this.cacheRemoves[i] = cacheRemoves[i].trim();
+		}
+		Class<?>[] parameterTypes = method.getParameterTypes();
+		Class<?>[] bindTypes = new Class<?>[parameterTypes.length];
+		String[] bindNames = new String[parameterTypes.length];
+		Annotation[][] annotations = method.getParameterAnnotations();
+		int handler = -1;
+		int argument = -1;
+		int arguments = 0;
+		for (int i = 0; i < parameterTypes.length; i ++) {
+			if (RowHandler.class.equals(parameterTypes[i])) {
+				if (handler < 0) {
+					handler = i;
+				}
+				continue;
+			}
+			if (argument < 0) {
+				argument = i;
+			}
+			arguments ++;
+			bindTypes[i] = parameterTypes[i];
+			for (Annotation annotation : annotations[i]) {
+				if (annotation instanceof Param) {
+					bindNames[i] = ((Param) annotation).value();
+				}
+			}
+		}
+		this.handlerIndex = handler;
+		this.argumentIndex = argument;
+		Class<?> batchType = null;
+		if (method.getAnnotation(Batch.class) != null) {
+			batchType = arguments != 1 || SqlTemplate.isSelect(sql) ? null
+					: getBatchType(parameterTypes[argument], method.getGenericParameterTypes()[argument]);
+			if (batchType == null) {
+				throw new IllegalStateException("@Batch requires a write with a single array or collection argument, method " + method);
+			}
+		}
+		this.batch = batchType != null;
+		this.template = batch ? SqlTemplate.compile(sql, batchType)
+				: SqlTemplate.compile(sql, bindTypes, bindNames);
+		// a cached result is read from the primary, so a miss after an eviction does not cache a lagging replica row
+		this.readOnly = template.isSelect() && cacheResult == null && method.getAnnotation(Consistent.class) == null;
+		Class<?> returnType = method.getReturnType();
+		Type genericReturnType = method.getGenericReturnType();
+		this.async = Future.class.equals(returnType);
+		if (async) {
+			genericReturnType = getFutureType(genericReturnType);
+			returnType = genericReturnType instanceof ParameterizedType
+					? (Class<?>) ((ParameterizedType) genericReturnType).getRawType()
+					: genericReturnType instanceof Class ? (Class<?>) genericReturnType : Object.class;
+		}
+		if (template.isSelect()) {
+			if (handlerIndex >= 0) {
+				resultKind = ResultKind.HANDLER;
+				resultType = getElementType(method.getGenericParameterTypes()[handlerIndex]);
+			} else if (Iterator.class.equals(returnType) || Iterable.class.equals(returnType)) {
+				resultKind = ResultKind.ITERATOR;
+				resultType = getElementType(genericReturnType);
+			} else if (returnType.isAssignableFrom(ArrayList.class)) {
+				resultKind = ResultKind.LIST;
+				resultType = getElementType(genericReturnType);
+			} else if (returnType.isArray()) {
+				resultKind = ResultKind.ARRAY;
+				resultType = returnType.getComponentType();
+			} else {
+				resultKind = ResultKind.OBJECT;
+				resultType = returnType;
+			}
+			rowMapper = resultType == null ? new ConvertRowMapper(null) : new BeanRowMapper(resultType);
+		} else {
+			if (boolean.class.equals(returnType)
+					|| returnType.isAssignableFrom(Boolean.class)) {
+				resultKind = ResultKind.BOOLEAN;
+			} else if (int.class.equals(returnType)
+					|| returnType.isAssignableFrom(Integer.class)) {
+				resultKind = ResultKind.INTEGER;
+			} else if (int[].class.equals(returnType)) {
+				resultKind = ResultKind.COUNTS;
+			} else {
+				resultKind = ResultKind.NONE;
+			}
+			resultType = returnType;
+			rowMapper = null;
+		}
+		this.cacheResult = isStreaming() || cacheResult == null ? null : cacheResult.trim();
+		this.cacheResultKey = this.cacheResult == null ? null
+				: CacheKey.compile(cacheConfigs.getProperty(this.cacheResult + ".key"), bindTypes, bindNames);
+		this.cacheRemoveKeys = new CacheKey[this.cacheRemoves.length];
+		for (int i = 0; i < this.cacheRemoves.length; i ++) {
+			String key = cacheConfigs.getProperty(this.cacheRemoves[i] + ".key");
+			cacheRemoveKeys[i] = batch ? CacheKey.compile(key, new Class<?>[] { batchType }, new String[1])
+					: CacheKey.compile(key, bindTypes, bindNames);
+		}
+		this.defaultResult = getDefaultValue(returnType);
+		this.countResult = int.class.equals(returnType) || Integer.class.equals(returnType);
+	}
+
+	/**
+	 * The T of Future&lt;T&gt;, or Object if the future is raw.
+	 */
+	private static Type getFutureType(Type type) {
+		if (type instanceof ParameterizedType) {
+			Type[] types = ((ParameterizedType) type).getActualTypeArguments();
+			if (types.length == 1 && (types[0] instanceof Class || types[0] instanceof ParameterizedType)) {
+				return types[0];
+			}
+		}
+		return Object.class;
+	}
+
+	/**
+	 * The element type of the array or collection argument of a {@link Batch}
+	 * method, or null if the argument is a single value.
+	 */
+	private static Class<?> getBatchType(Class<?> type, Type genericType) {
+		if (type == null) {
+			return null;
+		}
+		if (type.isArray()) {
+			Class<?> componentType = type.getComponentType();
+			return byte.class.equals(componentType) || char.class.equals(componentType) ? null : componentType;
+		}
+		if (Collection.class.isAssignableFrom(type)) {
+			Class<?> elementType = getElementType(genericType);
+			return elementType == null ? Object.class : elementType;
+		}
+		return null;
+	}
+
+	/**
+	 * The bean class of List&lt;Bean&gt;, or null to keep the rows as maps.
+	 */
+	private static Class<?> getElementType(Type type) {
+		if (type instanceof ParameterizedType) {
+			Type[] types = ((ParameterizedType) type).getActualTypeArguments();
+			if (types.length == 1 && types[0] instanceof Class
+					&& ! Object.class.equals(types[0])
+					&& ! Map.class.isAssignableFrom((Class<?>) types[0])) {
+				return (Class<?>) types[0];
+			}
+		}
+		return null;
+	}
+
+	private static Object getDefaultValue(Class<?> returnType) {
+		if (boolean.class.equals(returnType)
+				|| Boolean.class.equals(returnType)) {
+			return false;
+		} else if (char.class.equals(returnType)
+				|| Character.class.equals(returnType)) {
+			return '\0';
+		} else if (returnType.isPrimitive()
+				|| Number.class.isAssignableFrom(returnType)) {
+			return 0;
+		}
+		return null;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public SqlTemplate getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Whether the sql is a select that may be routed to a replica datasource,
+	 * i.e. not {@link Consistent} and not loading a result cache.
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Whether the method returns a Future, executed on the model executor.
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * Whether the method is a {@link Batch}, executing the sql once per
+	 * element of the array or collection argument in a jdbc batch.
+	 */
+	public boolean isBatch() {
+		return batch;
+	}
+
+	/**
+	 * The first argument bound to the sql, or null if the method has no argument.
+	 */
+	public Object getArgument(Object[] args) {
+		return argumentIndex < 0 || args == null ? null : args[argumentIndex];
+	}
+
+	/**
+	 * The row handler argument of a streaming query, or null if none.
+	 */
+	@SuppressWarnings("unchecked")
+	public RowHandler<Object> getRowHandler(Object[] args) {
+		return handlerIndex < 0 || args == null ? null : (RowHandler<Object>) args[handlerIndex];
+	}
+
+	/**
+	 * Whether the rows are streamed to an iterator or row handler instead of
+	 * being collected, which is never cached.
+	 */
+	public boolean isStreaming() {
+		return resultKind == ResultKind.ITERATOR || resultKind == ResultKind.HANDLER;
+	}
+
+	/**
+	 * The @CacheResult cache name, or null if the result is not cached.
+	 */
+	public String getCacheResult() {
+		return cacheResult;
+	}
+
+	/**
+	 * The @CacheRemoveEntry or @CachePut cache names, empty if none.
+	 */
+	public String[] getCacheRemoves() {
+		return cacheRemoves;
+	}
+
+	/**
+	 * The key of the result cache, null if the result is not cached.
+	 */
+	public CacheKey getCacheResultKey() {
+		return cacheResultKey;
+	}
+
+	/**
+	 * The keys of the caches removed from, in the order of the cache names,
+	 * compiled against the element type of a batch.
+	 */
+	public CacheKey[] getCacheRemoveKeys() {
+		return cacheRemoveKeys;
+	}
+
+	public ResultKind getResultKind() {
+		return resultKind;
+	}
+
+	/**
+	 * Whether the result holds all rows, otherwise only the first row is read.
+	 */
+	public boolean isMultiple() {
+		return resultKind == ResultKind.LIST || resultKind == ResultKind.ARRAY;
+	}
+
+	public RowMapper getRowMapper() {
+		return rowMapper;
+	}
+
+	/**
+	 * Convert the mapped rows of a select to the method result.
+	 */
+	public Object toResult(List<Object> rows) {
+		if (rows == null || rows.size() == 0) {
+			return null;
+		}
+		switch (resultKind) {
+		case LIST:
+			return rows;
+		case ARRAY:
+			Object array = Array.newInstance(resultType, rows.size());
+			for (int i = 0; i < rows.size(); i ++) {
+				Array.set(array, i, rows.get(i));
+			}
+			return array;
+		default:
+			return rows.get(0);
+		}
+	}
+
+	/**
+	 * Convert the update count of an insert, update or delete, or the row count
+	 * of a row handler query, to the method result.
+	 */
+	public Object toResult(int count) {
+		switch (resultKind) {
+		case HANDLER:
+			return countResult ? (Object) count : null;
+		case BOOLEAN:
+			return count > 0;
+		case INTEGER:
+			return count;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Convert the update counts of a batch to the method result.
+	 */
+	public Object toResult(int[] counts) {
+		switch (resultKind) {
+		case COUNTS:
+			return counts;
+		case BOOLEAN:
+		case INTEGER:
+			int total = 0;
+			for (int count : counts) {
+				if (count > 0) {
+					total += count;
+				} else if (count == Statement.SUCCESS_NO_INFO) {
+					total ++;
+				}
+			}
+			return resultKind == ResultKind.BOOLEAN ? (Object) (total > 0) : (Object) total;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * The result returned when the sql failed.
+	 */
+	public Object getDefaultResult() {
+		return defaultResult;
+	}
+
+	@Override
+	public String toString() {
+		return method.toString();
+	}
+
+}
@@ -1,13 +1,31 @@
 package mvcoc.models;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStream;
 import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.sql.SQLException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import mvcoc.Model;
+import mvcoc.caches.CacheProvider;
+import mvcoc.caches.LruCacheProvider;
+import mvcoc.caches.OffHeapCacheProvider;
+import mvcoc.caches.TinyLfuCacheProvider;
 import mvcoc.util.ClassUtils;
+import mvcoc.util.FileWatcher;
+import mvcoc.util.NamedThreadFactory;
 import mvcoc.util.PropertiesUtils;
 
 import org.apache.tomcat.dbcp.dbcp.BasicDataSource;
@@ -37,9 +55,31 @@ public class SqlModel implements Model {
     public static final String TEST_WHILE_IDLE_KEY = "testWhileIdle";
     
     public static final String TEST_ON_RETURN_KEY = "testOnReturn";
+    
+    public static final String POOL_PREPARED_STATEMENTS_KEY = "poolPreparedStatements";
+    
+    public static final String MAX_OPEN_PREPARED_STATEMENTS_KEY = "maxOpenPreparedStatements";
+    
+    public static final String REPLICA_BALANCER_KEY = "model.datasource.replica.balancer";
+    
+    public static final String BATCH_SIZE_KEY = "batchSize";
+    
+    public static final String FETCH_SIZE_KEY = "fetchSize";
+    
+    public static final String ASYNC_THREADS_KEY = "asyncThreads";
+    
+    public static final String ASYNC_QUEUE_SIZE_KEY = "asyncQueueSize";
+    
+    public static final String RELOAD_INTERVAL_KEY = "reload.interval";
+    
+    public static final String CACHE_PROVIDER_KEY = "model.cache.provider";
+    
+    private static final Pattern REPLICA_URL_PATTERN = Pattern.compile("model\\.datasource\\.replica\\.(\\d+)\\.url");
 
 	private final Map<String, Object> modelInstances = new ConcurrentHashMap<String, Object>();
 
+	private final Map<String, SqlInvocationHandler> modelHandlers = new ConcurrentHashMap<String, SqlInvocationHandler>();
+
 	private String modelExtension;
 
 	private String cacheExtension;
@@ -58,6 +98,24 @@ public class SqlModel implements Model {
 
     private BasicDataSource datasource = new BasicDataSource();
 
+    private BasicDataSource[] replicas = new BasicDataSource[0];
+
+    private Balancer balancer = new RoundRobinBalancer();
+
+    private final StatementStatistics statementStatistics = new StatementStatistics();
+
+    private int batchSize = 100;
+
+    private int fetchSize = 100;
+
+    private ExecutorService executor;
+
+    private FileWatcher watcher;
+
+    private CacheProvider cacheProvider = new LruCacheProvider();
+
+    private final Map<String, CacheProvider> cacheProviders = new ConcurrentHashMap<String, CacheProvider>();
+
 	public void setProperties(Properties properties) {
 		modelExtension = properties.getProperty("model.extension");
 		cacheExtension = properties.getProperty("cache.extension");
@@ -67,11 +125,165 @@ public class SqlModel implements Model {
 	    datasourceUsername = properties.getProperty("model.datasource.username");
 	    datasourcePassword = properties.getProperty("model.datasource.password");
 	    datasourceDriver = properties.getProperty("model.datasource.driver");
-        
-        datasource.setDriverClassName(datasourceDriver);
-        datasource.setUrl(datasourceUrl);
-        datasource.setUsername(datasourceUsername);
-        datasource.setPassword(datasourcePassword);
+        datasource = createDatasource(properties, datasourceDriver, datasourceUrl, datasourceUsername, datasourcePassword);
+        Map<Integer, BasicDataSource> replicaMap = new TreeMap<Integer, BasicDataSource>();
+        for (String key : properties.stringPropertyNames()) {
+        	Matcher matcher = REPLICA_URL_PATTERN.matcher(key);
+        	if (matcher.matches()) {
+        		String prefix = "model.datasource.replica." + matcher.group(1) + ".";
+        		replicaMap.put(Integer.valueOf(matcher.group(1)), createDatasource(properties, 
+        				properties.getProperty(prefix + "driver", datasourceDriver), 
+        				properties.getProperty(key),
+        				properties.getProperty(prefix + "username", datasourceUsername), 
+        				properties.getProperty(prefix + "password", datasourcePassword)));
+        	}
+        }
+        replicas = replicaMap.values().toArray(new BasicDataSource[replicaMap.size()]);
+        String balance = properties.getProperty(REPLICA_BALANCER_KEY);
+        if (balance == null || balance.trim().length() == 0 || "roundrobin".equals(balance.trim())) {
+        	balancer = new RoundRobinBalancer();
+        } else if ("leastactive".equals(balance.trim())) {
+        	balancer = new LeastActiveBalancer();
+        } else {
+        	try {
+        		balancer = (Balancer) ClassUtils.forName(balance.trim()).newInstance();
+        	} catch (RuntimeException e) {
+        		throw e;
+        	} catch (Exception e) {
+        		throw new IllegalStateException(e.getMessage(), e);
+        	}
+        }
+        cacheProvider = createCacheProvider(properties.getProperty(CACHE_PROVIDER_KEY)); // 缺省的结果缓存实现，lru, tinylfu, offheap或实现类名
+        cacheProviders.clear();
+        batchSize = Math.max(1, PropertiesUtils.getInt(properties, BATCH_SIZE_KEY, 100)); // 批量执行时，每批提交的行数
+        fetchSize = PropertiesUtils.getInt(properties, FETCH_SIZE_KEY, 100); // 流式查询时，每次从数据库读取的行数，MYSQL需设为-2147483648
+        int asyncThreads = Math.max(1, PropertiesUtils.getInt(properties, ASYNC_THREADS_KEY, datasource.getMaxActive())); // 异步查询线程数，缺省为最大连接数
+        int asyncQueueSize = Math.max(1, PropertiesUtils.getInt(properties, ASYNC_QUEUE_SIZE_KEY, 1000)); // 异步查询等待队列长度，满时由调用线程执行
+        if (executor != null) {
+        	executor.shutdown();
+        }
+        executor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60, TimeUnit.SECONDS, 
+        		new LinkedBlockingQueue<Runnable>(asyncQueueSize), new NamedThreadFactory("mvcoc-model"), 
+        		new ThreadPoolExecutor.CallerRunsPolicy());
+        if (watcher != null) {
+        	watcher.stop();
+        	watcher = null;
+        }
+        int reloadInterval = PropertiesUtils.getInt(properties, RELOAD_INTERVAL_KEY, 0); // 检查SQL文件修改的间隔毫秒数，0为不检查
+        File directory = getModelDirectory();
+        if (reloadInterval > 0 && directory != null) {
+        	watcher = new FileWatcher(reloadInterval);
+        	watcher.watch(directory, new FileWatcher.Listener() {
+        		@Override
+        		public void onChanged(File file, FileWatcher.Change change) {
+        			if (change != FileWatcher.Change.DELETED) {
+        				reload(file);
+        			}
+        		}
+        	});
+        	watcher.start();
+        }
+	}
+
+	private static CacheProvider createCacheProvider(String name) {
+		if (name == null || name.trim().length() == 0 || "lru".equals(name.trim())) {
+			return new LruCacheProvider();
+		} else if ("tinylfu".equals(name.trim())) {
+			return new TinyLfuCacheProvider();
+		} else if ("offheap".equals(name.trim())) {
+			return new OffHeapCacheProvider();
+		}
+		try {
+			return (CacheProvider) ClassUtils.forName(name.trim()).newInstance();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The cache provider of the name, or the default provider if the name is empty.
+	 */
+	public CacheProvider getCacheProvider(String name) {
+		if (name == null || name.trim().length() == 0) {
+			return cacheProvider;
+		}
+		CacheProvider provider = cacheProviders.get(name);
+		if (provider == null) {
+			provider = createCacheProvider(name);
+			cacheProviders.put(name, provider);
+		}
+		return provider;
+	}
+
+	private File getModelDirectory() {
+		URL url = Thread.currentThread().getContextClassLoader().getResource(modelDirectory);
+		if (url == null || ! "file".equals(url.getProtocol())) {
+			return null;
+		}
+		try {
+			return new File(URLDecoder.decode(url.getFile(), "UTF-8"));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reload the sqls of a changed model file, keeping the plans of the
+	 * unchanged sqls and the caches of the model.
+	 */
+	private void reload(File file) {
+		String name = file.getName();
+		if (! name.endsWith(modelExtension)) {
+			return;
+		}
+		SqlInvocationHandler handler = modelHandlers.get(name.substring(0, name.length() - modelExtension.length()));
+		if (handler == null) {
+			return;
+		}
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				Properties sqls = new Properties();
+				sqls.load(in);
+				handler.reload(sqls);
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void destroy() {
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+		close(datasource);
+		for (BasicDataSource replica : replicas) {
+			close(replica);
+		}
+	}
+
+	private static void close(BasicDataSource datasource) {
+		try {
+			datasource.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static BasicDataSource createDatasource(Properties properties, String driver, String url, String username, String password) {
+		BasicDataSource datasource = new BasicDataSource();
+        datasource.setDriverClassName(driver);
+        datasource.setUrl(url);
+        datasource.setUsername(username);
+        datasource.setPassword(password);
         datasource.setInitialSize(PropertiesUtils.getInt(properties, INITIAL_SIZE_KEY, 5)); // 初始连接数
         datasource.setMaxActive(PropertiesUtils.getInt(properties, MAX_ACTIVE_KEY, 30)); // 最大连接数，JSPKJ最多只允许30个连接
         datasource.setMaxIdle(PropertiesUtils.getInt(properties, MAX_IDLE_KEY, 5)); // 最大空闲连接数
@@ -84,6 +296,72 @@ public class SqlModel implements Model {
         datasource.setTestOnBorrow(PropertiesUtils.getBoolean(properties, TEST_ON_BORROW_KEY, false)); // 当获取连接时，测试其有效性
         datasource.setTestWhileIdle(PropertiesUtils.getBoolean(properties, TEST_WHILE_IDLE_KEY, true)); // 当连接空闲时，测试其有效性
         datasource.setTestOnReturn(PropertiesUtils.getBoolean(properties, TEST_ON_RETURN_KEY, false)); // 当连接返回连接池时，测试其有效性
+        datasource.setPoolPreparedStatements(PropertiesUtils.getBoolean(properties, POOL_PREPARED_STATEMENTS_KEY, true)); // 缓存每个连接的PreparedStatement
+        datasource.setMaxOpenPreparedStatements(PropertiesUtils.getInt(properties, MAX_OPEN_PREPARED_STATEMENTS_KEY, 100)); // 每个连接最多缓存的PreparedStatement数
+        return datasource;
+	}
+
+	/**
+	 * The primary datasource, for writes and consistent reads.
+	 */
+	public BasicDataSource getDatasource() {
+		return datasource;
+	}
+
+	/**
+	 * A replica datasource chosen by the balancer, or the primary if no
+	 * replica is configured.
+	 */
+	public BasicDataSource getReadDatasource() {
+		BasicDataSource[] replicas = this.replicas;
+		if (replicas.length == 0) {
+			return datasource;
+		}
+		if (replicas.length == 1) {
+			return replicas[0];
+		}
+		return balancer.select(replicas);
+	}
+
+	/**
+	 * The max rows executed by one jdbc batch of a {@link Batch} method.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * The jdbc fetch size of the queries streamed to an iterator or row handler.
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * The bounded executor running the model methods that return a Future.
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * The prepared statement cache hits and misses of all models.
+	 */
+	public StatementStatistics getStatementStatistics() {
+		return statementStatistics;
+	}
+	
+	/**
+	 * The result cache misses that shared the load of a concurrent miss, in all models.
+	 */
+	public long getCoalescedLoads() {
+		long coalesced = 0;
+		for (SqlInvocationHandler handler : modelHandlers.values()) {
+			for (ResultCache cache : handler.getCaches().values()) {
+				coalesced += cache.getCoalesced();
+			}
+		}
+		return coalesced;
 	}
 	
 	public <T> T get(Class<T> type, String name) {
@@ -109,7 +387,9 @@ public class SqlModel implements Model {
 				if (in != null) {
 					caches.load(in);
 				}
-				model = Proxy.newProxyInstance(classLoader, new Class<?>[] {modelClass}, new SqlInvocationHandler(datasource, sqls, caches));
+				SqlInvocationHandler handler = new SqlInvocationHandler(this, sqls, caches);
+				model = Proxy.newProxyInstance(classLoader, new Class<?>[] {modelClass}, handler);
+				modelHandlers.put(modelName, handler);
 				modelInstances.put(modelName, model);
 			}
 			return (T) model;
@@ -0,0 +1,185 @@
+package mvcoc.models;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mvcoc.util.PropertyGetter;
+import mvcoc.util.StringUtils;
+
+/**
+ * Immutable compiled form of a model sql.
+ *
+ * The ${var} placeholders are replaced with "?" once, and each placeholder is
+ * bound to a pre-resolved {@link PropertyGetter}, so executing the sql only
+ * reads the argument values and binds them.
+ */
+public final class SqlTemplate {
+
+	private static final Pattern VAR_PATTERN = Pattern.compile("\\$\\{([_.0-9A-Za-z]+)\\}");
+
+	private final String sql;
+
+	private final boolean select;
+
+	private final String[] names;
+
+	private final int[] indexes;
+
+	private final PropertyGetter[] getters;
+
+	private SqlTemplate(String sql, String[] names, int[] indexes, PropertyGetter[] getters) {
+		this.sql = sql;
+		this.select = isSelect(sql);
+		this.names = names;
+		this.indexes = indexes;
+		this.getters = getters;
+	}
+
+	public static boolean isSelect(String sql) {
+		return sql.trim().startsWith("select");
+	}
+
+	/**
+	 * Compile the sql against the declared type of a single argument.
+	 */
+	public static SqlTemplate compile(String source, Class<?> parameterType) {
+		return compile(source, new Class<?>[] { parameterType }, new String[1]);
+	}
+
+	/**
+	 * Compile the sql against the declared argument types of a model method.
+	 *
+	 * A ${var} refers to an argument by index (${0.name}) or by {@link Param}
+	 * name (${user.name}), or, if the method has a single argument, to the
+	 * argument itself or its property (${name}). A null type marks an argument
+	 * that is not bound, e.g. a row handler.
+	 *
+	 * If the single argument is an array, collection, map or untyped object,
+	 * ${0}, ${1} are never argument indexes, but its elements, as they were
+	 * before arguments had an index.
+	 */
+	public static SqlTemplate compile(String source, Class<?>[] parameterTypes, String[] parameterNames) {
+		int single = -1;
+		for (int i = 0; i < parameterTypes.length; i ++) {
+			if (parameterTypes[i] != null) {
+				single = single == -1 ? i : -2;
+			}
+		}
+		boolean indexed = single < 0 || ! isContainerType(parameterTypes[single]);
+		StringBuffer buf = new StringBuffer();
+		List<String> names = new ArrayList<String>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		List<PropertyGetter> getters = new ArrayList<PropertyGetter>();
+		Matcher matcher = VAR_PATTERN.matcher(source);
+		while (matcher.find()) {
+			String var = matcher.group(1);
+			matcher.appendReplacement(buf, "?");
+			int i = var.indexOf('.');
+			String head = i < 0 ? var : var.substring(0, i);
+			String path = i < 0 ? null : var.substring(i + 1);
+			int index = getIndex(head, parameterTypes, parameterNames, indexed);
+			if (index < 0) {
+				if (single == -1) {
+					index = -1;
+				} else if (single >= 0) {
+					index = single;
+					path = var;
+				} else {
+					throw new IllegalStateException("No such parameter ${" + var + "} in sql " + source);
+				}
+			}
+			names.add(var);
+			indexes.add(index);
+			getters.add(index < 0 || path == null || isSimpleType(parameterTypes[index]) ? null
+					: PropertyGetter.compile(parameterTypes[index], path));
+		}
+		matcher.appendTail(buf);
+		int[] indexArray = new int[indexes.size()];
+		for (int i = 0; i < indexArray.length; i ++) {
+			indexArray[i] = indexes.get(i);
+		}
+		return new SqlTemplate(buf.toString().trim(), names.toArray(new String[names.size()]),
+				indexArray, getters.toArray(new PropertyGetter[getters.size()]));
+	}
+
+	private static int getIndex(String head, Class<?>[] parameterTypes, String[] parameterNames, boolean indexed) {
+		for (int i = 0; i < parameterNames.length; i ++) {
+			if (parameterTypes[i] != null && head.equals(parameterNames[i])) {
+				return i;
+			}
+		}
+		if (indexed && StringUtils.isInteger(head)) {
+			int index = Integer.parseInt(head);
+			if (index < parameterTypes.length && parameterTypes[index] != null) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isContainerType(Class<?> type) {
+		return type.isArray() || Collection.class.isAssignableFrom(type)
+				|| Map.class.isAssignableFrom(type) || Object.class.equals(type);
+	}
+
+	private static boolean isSimpleType(Class<?> type) {
+		return type == null || type.isPrimitive()
+				|| String.class.equals(type) || Number.class.isAssignableFrom(type);
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public boolean isSelect() {
+		return select;
+	}
+
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	public Object[] getParameters(Object[] args) throws Exception {
+		Object[] params = new Object[getters.length];
+		for (int i = 0; i < getters.length; i ++) {
+			int index = indexes[i];
+			params[i] = getParameter(getters[i], index < 0 || args == null ? null : args[index]);
+		}
+		return params;
+	}
+
+	/**
+	 * The value of the i-th placeholder.
+	 */
+	public Object getParameter(int i, Object[] args) throws Exception {
+		int index = indexes[i];
+		return getParameter(getters[i], index < 0 || args == null ? null : args[index]);
+	}
+
+	public void bind(PreparedStatement stmt, Object[] params) throws Exception {
+		for (int i = 0; i < params.length; i ++) {
+			stmt.setObject(i + 1, params[i]);
+		}
+	}
+
+	private static Object getParameter(PropertyGetter getter, Object arg) throws Exception {
+		if (arg == null) {
+			return null;
+		} else if (getter == null || arg instanceof String || arg instanceof Number) {
+			return arg;
+		} else {
+			return getter.getValue(arg);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return sql;
+	}
+
+}
@@ -0,0 +1,83 @@
+package mvcoc.models;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tomcat.dbcp.dbcp.DelegatingStatement;
+
+/**
+ * Prepare statements and count the prepared statement cache hits and misses.
+ *
+ * With poolPreparedStatements enabled, the pooled connection hands out the
+ * same underlying statement for the same sql, so a statement seen before is
+ * a hit, and a new one is a miss.
+ *
+ * The statements seen are weakly held in lock striped maps, so the threads
+ * preparing different statements rarely wait for each other.
+ */
+public class StatementStatistics {
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final List<Map<Statement, Boolean>> stripes;
+
+	private final int mask;
+
+	public StatementStatistics() {
+		int size = 1;
+		while (size < Runtime.getRuntime().availableProcessors() * 4) {
+			size <<= 1;
+		}
+		stripes = new ArrayList<Map<Statement, Boolean>>(size);
+		for (int i = 0; i < size; i ++) {
+			stripes.add(new WeakHashMap<Statement, Boolean>());
+		}
+		mask = size - 1;
+	}
+
+	public PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		Statement statement = stmt;
+		if (stmt instanceof DelegatingStatement) {
+			Statement delegate = ((DelegatingStatement) stmt).getDelegate();
+			if (delegate != null) {
+				statement = delegate;
+			}
+		}
+		int hash = System.identityHashCode(statement);
+		Map<Statement, Boolean> statements = stripes.get((hash ^ (hash >>> 16)) & mask);
+		Boolean seen;
+		synchronized (statements) {
+			seen = statements.put(statement, Boolean.TRUE);
+		}
+		if (seen != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return stmt;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "hits: " + hits.get() + ", misses: " + misses.get();
+	}
+
+}
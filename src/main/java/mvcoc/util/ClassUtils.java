@@ -3,6 +3,7 @@ package mvcoc.util;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.List;
 import java.util.Map;
 
 public class ClassUtils {
@@ -90,6 +91,11 @@ public class ClassUtils {
 				if (index < Array.getLength(bean)) {
 					value = Array.get(bean, index);
 				}
+			} else if (bean instanceof List && StringUtils.isInteger(key.substring(0, i))) {
+				int index = Integer.parseInt(key.substring(0, i));
+				if (index < ((List<?>) bean).size()) {
+					value = ((List<?>) bean).get(index);
+				}
 			} else {
 				if (bean instanceof Map) {
 					value = ((Map<Object, Object>)bean).get(key.substring(0, 1).toLowerCase() + key.substring(1, i));
@@ -110,6 +116,13 @@ public class ClassUtils {
 				} else {
 					return null;
 				}
+			} else if (bean instanceof List && StringUtils.isInteger(key)) {
+				int index = Integer.parseInt(key);
+				if (index < ((List<?>) bean).size()) {
+					return ((List<?>) bean).get(index);
+				} else {
+					return null;
+				}
 			} else {
 				Method getter = bean.getClass().getMethod("get" + key.substring(0, 1).toUpperCase() + key.substring(1), new Class<?>[0]);
 				return getter.invoke(bean, new Object[0]);
@@ -0,0 +1,130 @@
+package mvcoc.util;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Poll directories for created, modified and deleted files.
+ *
+ * Each watched directory is scanned recursively every interval, and the
+ * listener is notified of the files whose last modified time changed since
+ * the previous scan.
+ */
+public class FileWatcher {
+
+	public static enum Change {
+		CREATED, MODIFIED, DELETED
+	}
+
+	public static interface Listener {
+
+		void onChanged(File file, Change change);
+
+	}
+
+	private final long interval;
+
+	private final List<Watch> watches = new CopyOnWriteArrayList<Watch>();
+
+	private ScheduledExecutorService scheduler;
+
+	public FileWatcher(long interval) {
+		this.interval = interval;
+	}
+
+	public void watch(File directory, Listener listener) {
+		if (directory != null && directory.isDirectory()) {
+			watches.add(new Watch(directory, listener));
+		}
+	}
+
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mvcoc-watcher"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	public void check() {
+		for (Watch watch : watches) {
+			try {
+				watch.check();
+			} catch (Throwable e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void scan(File directory, Map<File, Long> files) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isHidden()) {
+				continue;
+			}
+			if (child.isDirectory()) {
+				scan(child, files);
+			} else {
+				files.put(child, child.lastModified());
+			}
+		}
+	}
+
+	private static final class Watch {
+
+		private final File directory;
+
+		private final Listener listener;
+
+		private Map<File, Long> files = new HashMap<File, Long>();
+
+		Watch(File directory, Listener listener) {
+			this.directory = directory;
+			this.listener = listener;
+			scan(directory, files);
+		}
+
+		synchronized void check() {
+			Map<File, Long> current = new HashMap<File, Long>();
+			scan(directory, current);
+			Map<File, Long> previous = files;
+			files = current;
+			for (Map.Entry<File, Long> entry : current.entrySet()) {
+				Long modified = previous.get(entry.getKey());
+				if (modified == null) {
+					listener.onChanged(entry.getKey(), Change.CREATED);
+				} else if (! modified.equals(entry.getValue())) {
+					listener.onChanged(entry.getKey(), Change.MODIFIED);
+				}
+			}
+			for (File file : previous.keySet()) {
+				if (! current.containsKey(file)) {
+					listener.onChanged(file, Change.DELETED);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,28 @@
+package mvcoc.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Create daemon threads named prefix-1, prefix-2, ..., so that framework
+ * pools are recognizable in thread dumps and never block the container
+ * shutdown.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+	private final AtomicInteger sequence = new AtomicInteger();
+
+	private final String prefix;
+
+	public NamedThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, prefix + "-" + sequence.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+}
@@ -0,0 +1,113 @@
+package mvcoc.util;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Pre-resolved accessor for a dotted property path, e.g. "user.name".
+ *
+ * The getter chain is resolved once against the declared type, so reading the
+ * value does not look up methods. Paths that can not be resolved statically
+ * (maps, arrays, untyped beans) fall back to {@link ClassUtils#getProperty(Object, String)}.
+ */
+public abstract class PropertyGetter {
+
+	private static final Class<?>[] NO_TYPES = new Class<?>[0];
+
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private final Class<?> owner;
+
+	private final String path;
+
+	protected PropertyGetter(Class<?> owner, String path) {
+		this.owner = owner;
+		this.path = path;
+	}
+
+	/**
+	 * The type the getter is compiled against.
+	 */
+	public Class<?> getOwner() {
+		return owner;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public abstract Class<?> getType();
+
+	public abstract Object getValue(Object bean) throws Exception;
+
+	public static PropertyGetter compile(Class<?> type, String path) {
+		if (type == null || path == null || path.length() == 0
+				|| type.isArray() || Map.class.isAssignableFrom(type)
+				|| Object.class.equals(type)) {
+			return new DynamicGetter(type, path);
+		}
+		String[] names = path.split("\\.");
+		Method[] getters = new Method[names.length];
+		Class<?> cls = type;
+		for (int i = 0; i < names.length; i ++) {
+			String name = names[i];
+			if (name.length() == 0 || cls.isArray() || Map.class.isAssignableFrom(cls)) {
+				return new DynamicGetter(type, path);
+			}
+			try {
+				getters[i] = cls.getMethod("get" + name.substring(0, 1).toUpperCase() + name.substring(1), NO_TYPES);
+			} catch (NoSuchMethodException e) {
+				return new DynamicGetter(type, path);
+			}
+			cls = getters[i].getReturnType();
+		}
+		return new MethodGetter(type, path, getters);
+	}
+
+	private static final class MethodGetter extends PropertyGetter {
+
+		private final Method[] getters;
+
+		MethodGetter(Class<?> owner, String path, Method[] getters) {
+			super(owner, path);
+			this.getters = getters;
+		}
+
+		@Override
+		public Class<?> getType() {
+			return getters[getters.length - 1].getReturnType();
+		}
+
+		@Override
+		public Object getValue(Object bean) throws Exception {
+			Object value = bean;
+			for (int i = 0; i < getters.length && value != null; i ++) {
+				value = getters[i].invoke(value, NO_ARGS);
+			}
+			return value;
+		}
+
+	}
+
+	private static final class DynamicGetter extends PropertyGetter {
+
+		DynamicGetter(Class<?> owner, String path) {
+			super(owner, path);
+		}
+
+		@Override
+		public Class<?> getType() {
+			return Object.class;
+		}
+
+		@Override
+		public Object getValue(Object bean) throws Exception {
+			if (bean == null) {
+				return null;
+			}
+			return ClassUtils.getProperty(bean, getPath());
+		}
+
+	}
+
+}
@@ -5,21 +5,73 @@ import httl.spi.resolvers.ServletResolver;
 import java.io.ByteArrayOutputStream;
 import java.io.StringWriter;
 import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletRequest;
 
 import mvcoc.web.servlet.DispatcherServlet;
+import mvcoc.web.servlet.Embeds;
+import mvcoc.web.servlet.FragmentCache;
 
 public class MvcocMethod {
 
+	private static final ThreadLocal<HttpServletRequest> EMBED_REQUEST = new ThreadLocal<HttpServletRequest>();
+
 	private MvcocMethod() {}
 
-	public static Object embed(String name) throws Exception {
-		Map<String, Object> models = DispatcherServlet.toModel(ServletResolver.getRequest());
-		String path = DispatcherServlet.getController().get(name, models);
-		//ByteArrayOutputStream out = new ByteArrayOutputStream();
-		StringWriter writer = new StringWriter();
-		DispatcherServlet.getView().render(path, models, writer);
-		//return out.toByteArray();
-		return writer.toString();
+	public static Object embed(final String name) throws Exception {
+		HttpServletRequest request = EMBED_REQUEST.get();
+		boolean nested = request != null;
+		if (! nested) {
+			request = ServletResolver.getRequest();
+		}
+		final FragmentCache cache = DispatcherServlet.getFragmentCache();
+		final FragmentCache.Fragment fragment = cache == null ? null : cache.getFragment(name);
+		String key = null;
+		if (fragment != null) {
+			key = fragment.getKey(request);
+			String content = cache.get(key);
+			if (content != null) {
+				return content;
+			}
+		}
+		final Map<String, Object> models = DispatcherServlet.toModel(request);
+		Embeds embeds = nested ? null : (Embeds) request.getAttribute(Embeds.REQUEST_KEY);
+		if (embeds != null) {
+			// the embeds of a fragment rendered in parallel are rendered in its thread
+			final HttpServletRequest embedRequest = request;
+			final String embedKey = key;
+			return embeds.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					EMBED_REQUEST.set(embedRequest);
+					try {
+						return render(name, models, cache, fragment, embedKey);
+					} finally {
+						EMBED_REQUEST.remove();
+					}
+				}
+			});
+		}
+		return render(name, models, cache, fragment, key);
+	}
+
+	private static String render(String name, Map<String, Object> models, FragmentCache cache, FragmentCache.Fragment fragment, String key) throws Exception {
+		String content;
+		try {
+			String path = DispatcherServlet.getController().get(name, models);
+			//ByteArrayOutputStream out = new ByteArrayOutputStream();
+			StringWriter writer = new StringWriter();
+			DispatcherServlet.getView().render(path, models, writer);
+			//return out.toByteArray();
+			content = writer.toString();
+		} finally {
+			DispatcherServlet.close(models);
+		}
+		if (fragment != null) {
+			cache.put(fragment, key, content);
+		}
+		return content;
 	}
 
 }
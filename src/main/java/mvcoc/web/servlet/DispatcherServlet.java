@@ -1,13 +1,24 @@
 package mvcoc.web.servlet;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -19,6 +30,9 @@ import mvcoc.Controller;
 import mvcoc.Model;
 import mvcoc.View;
 import mvcoc.util.ClassUtils;
+import mvcoc.util.FileWatcher;
+import mvcoc.util.NamedThreadFactory;
+import mvcoc.util.PropertiesUtils;
 
 public class DispatcherServlet extends HttpServlet {
 
@@ -38,20 +52,40 @@ public class DispatcherServlet extends HttpServlet {
 
 	private static final String PROTOCOL_SEPARATOR = "://";
 
+	private static final int[] NO_LAYOUTS = new int[0];
+
+	private static final String LAYOUT_MARKER = "#mvcoc-layout-placeholder";
+
 	private static Model MODEL;
 
 	private static View VIEW;
 
 	private static Controller CONTROLLER;
 
+	private static FragmentCache FRAGMENT_CACHE;
+
 	private String viewExtension;
 
 	private String layoutName;
 
 	private String layoutPlaceholder;
+
+	private boolean layoutStreaming;
+
+	private int bufferSize;
+
+	private BlockingQueue<byte[]> buffers;
+
+	private PageCache pageCache;
+
+	private ExecutorService embedExecutor;
 	
 	private String redirectPath;
 
+	private final Map<String, int[]> layoutLevels = new ConcurrentHashMap<String, int[]>();
+
+	private FileWatcher watcher;
+
 	public static Model getModel() {
 		return MODEL;
 	}
@@ -64,6 +98,10 @@ public class DispatcherServlet extends HttpServlet {
 		return CONTROLLER;
 	}
 
+	public static FragmentCache getFragmentCache() {
+		return FRAGMENT_CACHE;
+	}
+
 	@Override
 	public void init() throws ServletException {
 	    super.init();
@@ -93,8 +131,35 @@ public class DispatcherServlet extends HttpServlet {
 	    viewExtension = properties.getProperty("view.extension");
 	    layoutName = properties.getProperty("view.layout.path");
 		layoutPlaceholder = properties.getProperty("view.layout.placeholder");
+		layoutStreaming = PropertiesUtils.getBoolean(properties, "view.layout.streaming", false);
+		// off by default: the page goes to getOutputStream(), which fails if a filter already took the writer
+		bufferSize = PropertiesUtils.getInt(properties, "view.buffer.size", 0);
+		buffers = new ArrayBlockingQueue<byte[]>(Math.max(1, PropertiesUtils.getInt(properties, "view.buffer.pool", 64)));
+		pageCache = new PageCache(properties);
+		FRAGMENT_CACHE = new FragmentCache(properties);
+		int embedThreads = PropertiesUtils.getInt(properties, "view.embed.threads", 0);
+		if (embedThreads > 0) {
+			embedExecutor = new ThreadPoolExecutor(embedThreads, embedThreads, 60, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>(PropertiesUtils.getInt(properties, "view.embed.queues", 1000)), 
+					new NamedThreadFactory("mvcoc-embed"), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
 		
 		redirectPath = properties.getProperty("controller.redirect.path");
+
+		String viewDirectory = properties.getProperty("view.directory");
+		int reloadInterval = PropertiesUtils.getInt(properties, "reload.interval", 0);
+		if (reloadInterval > 0 && viewDirectory != null && viewDirectory.length() > 0) {
+			watcher = new FileWatcher(reloadInterval);
+			watcher.watch(new File(getServletContext().getRealPath(viewDirectory)), new FileWatcher.Listener() {
+				@Override
+				public void onChanged(File file, FileWatcher.Change change) {
+					if (change != FileWatcher.Change.MODIFIED) {
+						layoutLevels.clear();
+					}
+				}
+			});
+			watcher.start();
+		}
 	}
 	
 	private Object newInstance(Properties config, String key) throws ServletException {
@@ -120,9 +185,32 @@ public class DispatcherServlet extends HttpServlet {
 	
     @Override
     public void destroy() {
+    	if (watcher != null) {
+    		watcher.stop();
+    		watcher = null;
+    	}
+    	if (embedExecutor != null) {
+    		embedExecutor.shutdown();
+    		embedExecutor = null;
+    	}
+    	destroyInstance(CONTROLLER);
+    	destroyInstance(VIEW);
+    	destroyInstance(MODEL);
         super.destroy();
     }
 
+	private void destroyInstance(Object instance) {
+		if (instance == null) {
+			return;
+		}
+		try {
+			instance.getClass().getMethod("destroy", new Class<?>[0]).invoke(instance, new Object[0]);
+		} catch (NoSuchMethodException e) {
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
 	@Override
 	protected void doPost(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException {
@@ -150,6 +238,8 @@ public class DispatcherServlet extends HttpServlet {
 	@SuppressWarnings("unchecked")
 	protected void process(String action, HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException {
+		Map<String, Object> models = null;
+		Embeds embeds = null;
 		try {
 			request.setCharacterEncoding("UTF-8");
 			response.setCharacterEncoding("UTF-8");
@@ -162,7 +252,24 @@ public class DispatcherServlet extends HttpServlet {
 			} else if (uri.startsWith(ctx)) {
 				uri = uri.substring(ctx.length());
 			}
-			Map<String, Object> models = new HashMap<String, Object>();
+			PageCache.Recorder recorder = null;
+			if ("get".equals(action) && bufferSize > 0 && pageCache.isEnabled()) {
+				String pageKey = pageCache.getKey(request, uri);
+				if (pageKey != null) {
+					PageCache.Page page = pageCache.get(pageKey);
+					if (page != null) {
+						writePage(request, response, page);
+						return;
+					}
+					recorder = new PageCache.Recorder(request, response, pageKey);
+					response = recorder;
+				}
+			}
+			if (embedExecutor != null) {
+				embeds = new Embeds(embedExecutor);
+				request.setAttribute(Embeds.REQUEST_KEY, embeds);
+			}
+			models = new HashMap<String, Object>();
 			models.put("request", request);
 			models.put("response", response);
 			models.put("userPrincipal", request.getUserPrincipal());
@@ -190,42 +297,217 @@ public class DispatcherServlet extends HttpServlet {
 				}
 				if (redirectPath != null && redirectPath.length() > 0) {
 					models.put("redirect", path);
-					VIEW.render(redirectPath + viewExtension, models, response.getWriter());
-					response.flushBuffer();
+					render(redirectPath + viewExtension, models, response, null, embeds);
 				} else {
 					response.sendRedirect(path);
 				}
 			} else if (path.contains(PROTOCOL_SEPARATOR)) {
 				response.sendRedirect(path);
 			} else {
-				Writer outputStream = response.getWriter();
-				String layoutUriDir = uri;
-				String layoutPathDir = path;
-				for(;;) {
-					int i = layoutUriDir.lastIndexOf('/');
-					int j = layoutPathDir.lastIndexOf('/');
-					if (i < 0 || j < 0) {
-						break;
+				if (layoutStreaming) {
+					if (embeds != null) {
+						EmbedWriter writer = new EmbedWriter(response.getWriter(), embeds);
+						renderStreaming(action, uri, path, models, writer);
+						writer.finish();
+					} else {
+						renderStreaming(action, uri, path, models, response.getWriter());
 					}
-					layoutUriDir = layoutUriDir.substring(0, i);
-					layoutPathDir = layoutPathDir.substring(0, j);
-					if (VIEW.has(layoutPathDir + layoutName + viewExtension)) {
-						StringWriter out = new StringWriter();
-						VIEW.render(path, models, out);
-						models.put(layoutPlaceholder, out.toString());
-						path = execute(action, layoutUriDir + layoutName, models);
+					response.flushBuffer();
+					return;
+				}
+				String layoutUriDir = uri;
+				int level = 0;
+				layouts: for (int layoutLevel : getLayoutLevels(path)) {
+					for (; level < layoutLevel; level ++) {
+						int i = layoutUriDir.lastIndexOf('/');
+						if (i < 0) {
+							break layouts;
+						}
+						layoutUriDir = layoutUriDir.substring(0, i);
 					}
+					StringWriter out = new StringWriter();
+					VIEW.render(path, models, out);
+					models.put(layoutPlaceholder, out.toString());
+					path = execute(action, layoutUriDir + layoutName, models);
 				}
-				VIEW.render(path, models, outputStream);
-				response.flushBuffer();
+				render(path, models, response, recorder, embeds);
 			}
 		} catch (SecurityException e) {
 			response.sendError(HttpServletResponse.SC_UNAUTHORIZED, e.getMessage());
+		} catch (FileNotFoundException e) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
 		} catch (Throwable e) {
 			throw new ServletException(e.getMessage(), e);
+		} finally {
+			if (embeds != null) {
+				embeds.cancel();
+			}
+			close(models);
+		}
+	}
+
+	/**
+	 * Close the closeable model values, e.g. the result iterators holding a
+	 * connection, which the view may not have iterated to the end.
+	 */
+	public static void close(Map<String, Object> models) {
+		if (models == null) {
+			return;
+		}
+		for (Object value : models.values()) {
+			if (value instanceof Closeable) {
+				try {
+					((Closeable) value).close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
 		}
 	}
 	
+	/**
+	 * Render the view as bytes into a pooled buffer, sent with its
+	 * Content-Length if it fits, or through the writer if the buffer is disabled.
+	 * A page that fits is also cached with its recorded headers, if it is
+	 * still cacheable.
+	 */
+	private void render(String path, Map<String, Object> models, HttpServletResponse response, PageCache.Recorder recorder, Embeds embeds) throws ParseException, IOException {
+		if (bufferSize <= 0) {
+			render(path, models, response.getWriter(), embeds);
+			response.flushBuffer();
+			return;
+		}
+		ResponseBuffer buffer = new ResponseBuffer(response, buffers, bufferSize);
+		try {
+			if (embeds != null) {
+				Writer writer = new OutputStreamWriter(buffer, response.getCharacterEncoding());
+				render(path, models, writer, embeds);
+				writer.flush();
+			} else {
+				VIEW.render(path, models, buffer);
+			}
+			if (recorder != null && recorder.isCacheable() && buffer.isBuffered()) {
+				PageCache.Page page = pageCache.put(recorder.getKey(), buffer.toByteArray(),
+						response.getContentType(), recorder.getHeaders());
+				response.setHeader("ETag", page.getETag());
+			}
+			buffer.commit();
+		} finally {
+			buffer.close();
+		}
+	}
+
+	/**
+	 * Render the view, splicing the embedded fragments rendered in parallel, if any.
+	 */
+	private void render(String path, Map<String, Object> models, Writer writer, Embeds embeds) throws ParseException, IOException {
+		if (embeds == null) {
+			VIEW.render(path, models, writer);
+			return;
+		}
+		EmbedWriter out = new EmbedWriter(writer, embeds);
+		VIEW.render(path, models, out);
+		out.finish();
+	}
+
+	/**
+	 * Write a cached page, or 304 if the client has its ETag.
+	 */
+	private void writePage(HttpServletRequest request, HttpServletResponse response, PageCache.Page page) throws IOException {
+		page.writeHeaders(response);
+		response.setHeader("ETag", page.getETag());
+		String match = request.getHeader("If-None-Match");
+		if (match != null && (match.contains(page.getETag()) || "*".equals(match.trim()))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		if (page.getContentType() != null) {
+			response.setContentType(page.getContentType());
+		}
+		byte[] content = page.getContent();
+		response.setContentLength(content.length);
+		response.getOutputStream().write(content);
+		response.flushBuffer();
+	}
+
+	/**
+	 * Execute the layout controllers first, then render the outermost layout
+	 * straight into the writer, rendering each inner view at the position
+	 * its layout writes the placeholder, instead of copying it into a string.
+	 */
+	private void renderStreaming(String action, String uri, String path, Map<String, Object> models, Writer writer) throws Exception {
+		int[] levels = getLayoutLevels(path);
+		String[] paths = new String[levels.length + 1];
+		paths[0] = path;
+		int count = 1;
+		if (levels.length > 0) {
+			models.put(layoutPlaceholder, LAYOUT_MARKER);
+			String layoutUriDir = uri;
+			int level = 0;
+			layouts: for (int layoutLevel : levels) {
+				for (; level < layoutLevel; level ++) {
+					int i = layoutUriDir.lastIndexOf('/');
+					if (i < 0) {
+						break layouts;
+					}
+					layoutUriDir = layoutUriDir.substring(0, i);
+				}
+				paths[count ++] = execute(action, layoutUriDir + layoutName, models);
+			}
+		}
+		renderLayout(paths, count - 1, models, writer);
+	}
+
+	private void renderLayout(final String[] paths, final int index, final Map<String, Object> models, final Writer writer) throws ParseException, IOException {
+		if (index == 0) {
+			VIEW.render(paths[0], models, writer);
+			return;
+		}
+		PlaceholderWriter out = new PlaceholderWriter(writer, LAYOUT_MARKER) {
+			@Override
+			protected void writePlaceholder() throws IOException {
+				try {
+					renderLayout(paths, index - 1, models, writer);
+				} catch (ParseException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}
+		};
+		VIEW.render(paths[index], models, out);
+		out.finish();
+	}
+
+	/**
+	 * The levels above the view path that have a layout, innermost first,
+	 * e.g. [1, 3] for /a/b/c/view with the layouts /a/b/layout and /layout.
+	 * The template engine is probed once per view path.
+	 */
+	private int[] getLayoutLevels(String path) {
+		int[] levels = layoutLevels.get(path);
+		if (levels == null) {
+			int count = 0;
+			int[] found = new int[path.length()];
+			String layoutPathDir = path;
+			for (int level = 1; ; level ++) {
+				int j = layoutPathDir.lastIndexOf('/');
+				if (j < 0) {
+					break;
+				}
+				layoutPathDir = layoutPathDir.substring(0, j);
+				if (VIEW.has(layoutPathDir + layoutName + viewExtension)) {
+					found[count ++] = level;
+				}
+			}
+			levels = NO_LAYOUTS;
+			if (count > 0) {
+				levels = new int[count];
+				System.arraycopy(found, 0, levels, 0, count);
+			}
+			layoutLevels.put(path, levels);
+		}
+		return levels;
+	}
+
 	@SuppressWarnings("unchecked")
 	public static Map<String, Object> toModel(HttpServletRequest request) {
 		String uri = request.getRequestURI();
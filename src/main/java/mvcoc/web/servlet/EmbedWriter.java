@@ -0,0 +1,172 @@
+package mvcoc.web.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Splice the fragments of the {@link Embeds} into the output at their markers.
+ *
+ * The output is passed through until the first marker of a fragment that is
+ * still rendering, and buffered after it, so the page keeps rendering while
+ * the fragments complete. The buffered output is written out as the
+ * fragments before it complete, and at the latest on {@link #finish()}.
+ *
+ * A char sequence looking like a marker, but without the nonce of the
+ * request or a valid fragment index, is written out unchanged.
+ */
+public class EmbedWriter extends Writer {
+
+	private final Writer writer;
+
+	private final Embeds embeds;
+
+	private final LinkedList<Object> pending = new LinkedList<Object>();
+
+	private final StringBuilder tail = new StringBuilder();
+
+	private final String prefix;
+
+	// the chars of a partial marker, from its start char
+	private final StringBuilder marker = new StringBuilder();
+
+	public EmbedWriter(Writer writer, Embeds embeds) {
+		this.writer = writer;
+		this.embeds = embeds;
+		this.prefix = embeds.getPrefix();
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off + len;
+		int start = off;
+		for (int i = off; i < end; i ++) {
+			char c = cbuf[i];
+			if (c == Embeds.MARKER_START) {
+				text(cbuf, start, i - start);
+				unmatched();
+				marker.append(c);
+				start = i + 1;
+			} else if (marker.length() > 0) {
+				start = i + 1;
+				if (c == Embeds.MARKER_END) {
+					Future<String> fragment = getFragment();
+					if (fragment != null) {
+						marker.setLength(0);
+						if (tail.length() > 0) {
+							pending.add(tail.toString());
+							tail.setLength(0);
+						}
+						pending.add(fragment);
+						continue;
+					}
+				}
+				marker.append(c);
+				if (c == Embeds.MARKER_END || ! isMarker()) {
+					unmatched();
+				}
+			}
+		}
+		text(cbuf, start, end - start);
+		drain(false);
+	}
+
+	/**
+	 * Whether the partial marker is still a prefix of a valid marker.
+	 */
+	private boolean isMarker() {
+		int j = marker.length() - 2;
+		char c = marker.charAt(j + 1);
+		if (j < prefix.length()) {
+			return c == prefix.charAt(j);
+		}
+		return c >= '0' && c <= '9' && j - prefix.length() < Embeds.MAX_INDEX_LENGTH;
+	}
+
+	/**
+	 * The fragment of the complete marker, or null if it has no fragment index.
+	 */
+	private Future<String> getFragment() {
+		if (marker.length() <= 1 + prefix.length()) {
+			return null;
+		}
+		return embeds.get(Integer.parseInt(marker.substring(1 + prefix.length())));
+	}
+
+	/**
+	 * Write out the chars of a partial marker, which is not a marker after all.
+	 */
+	private void unmatched() throws IOException {
+		if (marker.length() > 0) {
+			String chars = marker.toString();
+			marker.setLength(0);
+			text(chars.toCharArray(), 0, chars.length());
+		}
+	}
+
+	private void text(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		if (pending.isEmpty()) {
+			writer.write(cbuf, off, len);
+		} else {
+			tail.append(cbuf, off, len);
+		}
+	}
+
+	private void drain(boolean wait) throws IOException {
+		while (! pending.isEmpty()) {
+			Object head = pending.getFirst();
+			if (head instanceof Future) {
+				@SuppressWarnings("unchecked")
+				Future<String> future = (Future<String>) head;
+				if (! wait && ! future.isDone()) {
+					return;
+				}
+				try {
+					String content = future.get();
+					if (content != null) {
+						writer.write(content);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e.getMessage(), e);
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause().getMessage(), e.getCause());
+				}
+			} else {
+				writer.write((String) head);
+			}
+			pending.removeFirst();
+		}
+		if (tail.length() > 0) {
+			writer.write(tail.toString());
+			tail.setLength(0);
+		}
+	}
+
+	/**
+	 * Wait for the pending fragments, and write out the buffered output.
+	 */
+	public void finish() throws IOException {
+		unmatched();
+		drain(true);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (pending.isEmpty()) {
+			writer.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		writer.close();
+	}
+
+}
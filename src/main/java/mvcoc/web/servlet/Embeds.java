@@ -0,0 +1,82 @@
+package mvcoc.web.servlet;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The embedded fragments of a request, rendered concurrently.
+ *
+ * Each submitted fragment is represented in the output by a marker, which an
+ * {@link EmbedWriter} replaces with the rendered fragment, in order. The
+ * marker holds a random nonce of the request, so the page content can not
+ * forge one.
+ */
+public class Embeds {
+
+	/**
+	 * The request attribute of the embeds, present if embeds run in parallel.
+	 */
+	public static final String REQUEST_KEY = Embeds.class.getName();
+
+	static final char MARKER_START = '\uE000';
+
+	static final char MARKER_END = '\uE001';
+
+	static final int MAX_INDEX_LENGTH = 9;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final ExecutorService executor;
+
+	private final String prefix = Long.toHexString(RANDOM.nextLong()) + ":";
+
+	private final List<Future<String>> futures = new ArrayList<Future<String>>();
+
+	private boolean cancelled;
+
+	public Embeds(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Start rendering the fragment, and return its marker.
+	 */
+	public synchronized String submit(Callable<String> fragment) {
+		Future<String> future = executor.submit(fragment);
+		if (cancelled) {
+			future.cancel(true);
+		}
+		futures.add(future);
+		return MARKER_START + prefix + String.valueOf(futures.size() - 1) + MARKER_END;
+	}
+
+	/**
+	 * The nonce of the markers, followed by ':' and the fragment index.
+	 */
+	String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * The fragment of the index, or null if there is no such fragment.
+	 */
+	synchronized Future<String> get(int index) {
+		return index < futures.size() ? futures.get(index) : null;
+	}
+
+	/**
+	 * Cancel the fragments not rendered yet, when the request ends without
+	 * draining them, so they do not run on with the recycled request.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		for (Future<String> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+}
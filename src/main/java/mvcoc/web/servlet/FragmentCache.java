@@ -0,0 +1,141 @@
+package mvcoc.web.servlet;
+
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import mvcoc.util.ConcurrentLinkedHashMap;
+import mvcoc.util.PropertiesUtils;
+
+/**
+ * Cache of embedded fragments, configured per fragment by:
+ *
+ * fragment.cache./common/sidebar.ttl=60000 (milliseconds)
+ * fragment.cache./common/sidebar.key=userPrincipal,page (the values the fragment varies by)
+ * fragment.cache.capacity=1000 (fragments)
+ *
+ * A key name is the userPrincipal, the requestURI, or a request parameter.
+ */
+public class FragmentCache {
+
+	private static final String PREFIX = "fragment.cache.";
+
+	private static final String TTL_SUFFIX = ".ttl";
+
+	private static final String KEY_SUFFIX = ".key";
+
+	private static final Pattern COMMA_PATTERN = Pattern.compile("\\s*\\,\\s*");
+
+	private final Map<String, Fragment> fragments = new HashMap<String, Fragment>();
+
+	private final ConcurrentLinkedHashMap<String, Content> contents;
+
+	public FragmentCache(Properties config) {
+		for (String key : config.stringPropertyNames()) {
+			if (key.startsWith(PREFIX) && key.endsWith(TTL_SUFFIX)) {
+				String name = key.substring(PREFIX.length(), key.length() - TTL_SUFFIX.length());
+				String vary = config.getProperty(PREFIX + name + KEY_SUFFIX, "").trim();
+				fragments.put(name, new Fragment(name, PropertiesUtils.getInt(config, key, 0),
+						vary.length() == 0 ? new String[0] : COMMA_PATTERN.split(vary)));
+			}
+		}
+		this.contents = new ConcurrentLinkedHashMap<String, Content>(Math.max(1, PropertiesUtils.getInt(config, PREFIX + "capacity", 1000)));
+	}
+
+	/**
+	 * The cache config of the fragment, or null if it is not cached.
+	 */
+	public Fragment getFragment(String name) {
+		return fragments.get(name);
+	}
+
+	public String get(String key) {
+		Content content = contents.get(key);
+		if (content == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() >= content.expires) {
+			contents.remove(key, content);
+			return null;
+		}
+		return content.value;
+	}
+
+	public void put(Fragment fragment, String key, String value) {
+		contents.put(key, new Content(value, System.currentTimeMillis() + fragment.ttl));
+	}
+
+	public void clear() {
+		contents.clear();
+	}
+
+	public static final class Fragment {
+
+		private final String name;
+
+		private final long ttl;
+
+		private final String[] keys;
+
+		Fragment(String name, long ttl, String[] keys) {
+			this.name = name;
+			this.ttl = ttl;
+			this.keys = keys;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The cache key of the fragment for the request.
+		 */
+		public String getKey(HttpServletRequest request) {
+			if (keys.length == 0) {
+				return name;
+			}
+			StringBuilder buf = new StringBuilder(PageCache.encode(name));
+			for (String key : keys) {
+				buf.append('&').append(PageCache.encode(key)).append('=');
+				if ("userPrincipal".equals(key)) {
+					Principal principal = request.getUserPrincipal();
+					if (principal != null) {
+						buf.append(PageCache.encode(principal.getName()));
+					}
+				} else if ("requestURI".equals(key)) {
+					buf.append(PageCache.encode(request.getRequestURI()));
+				} else {
+					String[] values = request.getParameterValues(key);
+					if (values != null) {
+						for (int i = 0; i < values.length; i ++) {
+							if (i > 0) {
+								buf.append(',');
+							}
+							buf.append(PageCache.encode(values[i]));
+						}
+					}
+				}
+			}
+			return buf.toString();
+		}
+
+	}
+
+	private static final class Content {
+
+		final String value;
+
+		final long expires;
+
+		Content(String value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+
+	}
+
+}
@@ -0,0 +1,344 @@
+package mvcoc.web.servlet;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
+
+import mvcoc.util.ConcurrentLinkedHashMap;
+import mvcoc.util.PropertiesUtils;
+
+/**
+ * Cache of rendered GET pages, configured by:
+ *
+ * page.cache.paths=/list,/news (the cached uri prefixes)
+ * page.cache.params=page,sort (the query parameters in the key)
+ * page.cache.principal=false (whether the user is in the key)
+ * page.cache.ttl=60000 (milliseconds)
+ * page.cache.capacity=1000 (pages)
+ *
+ * Only the pages that fit the response buffer are cached, so the cache is
+ * used only if view.buffer.size is set. The headers set while rendering are
+ * replayed on a hit, but a page setting a cookie, redirecting or failing is
+ * not cached.
+ *
+ * A path matches the uris under it, e.g. /list matches /list and /list/2,
+ * but not /listing.
+ */
+public class PageCache {
+
+	private static final Pattern COMMA_PATTERN = Pattern.compile("\\s*\\,\\s*");
+
+	private final String[] paths;
+
+	private final String[] params;
+
+	private final boolean principal;
+
+	private final long ttl;
+
+	private final ConcurrentLinkedHashMap<String, Page> pages;
+
+	public PageCache(Properties config) {
+		String paths = config.getProperty("page.cache.paths", "").trim();
+		String params = config.getProperty("page.cache.params", "").trim();
+		this.paths = paths.length() == 0 ? new String[0] : COMMA_PATTERN.split(paths);
+		this.params = params.length() == 0 ? new String[0] : COMMA_PATTERN.split(params);
+		this.principal = PropertiesUtils.getBoolean(config, "page.cache.principal", false);
+		this.ttl = PropertiesUtils.getInt(config, "page.cache.ttl", 60 * 1000);
+		this.pages = new ConcurrentLinkedHashMap<String, Page>(Math.max(1, PropertiesUtils.getInt(config, "page.cache.capacity", 1000)));
+	}
+
+	public boolean isEnabled() {
+		return paths.length > 0;
+	}
+
+	/**
+	 * The cache key of the request, or null if the uri is not cached.
+	 */
+	public String getKey(HttpServletRequest request, String uri) {
+		boolean matched = false;
+		for (String path : paths) {
+			if (uri.startsWith(path) && (uri.length() == path.length()
+					|| path.endsWith("/") || uri.charAt(path.length()) == '/')) {
+				matched = true;
+				break;
+			}
+		}
+		if (! matched) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder(encode(uri));
+		for (String param : params) {
+			String[] values = request.getParameterValues(param);
+			if (values != null) {
+				for (String value : values) {
+					key.append('&').append(encode(param)).append('=').append(encode(value));
+				}
+			}
+		}
+		if (principal) {
+			Principal user = request.getUserPrincipal();
+			key.append('@');
+			if (user != null) {
+				key.append('=').append(encode(user.getName()));
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * URL encode a key component, so the '&', '=' and '@' separators
+	 * of the key can not occur in it.
+	 */
+	static String encode(String value) {
+		if (value == null) {
+			return "";
+		}
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	public Page get(String key) {
+		Page page = pages.get(key);
+		if (page != null && page.isExpired()) {
+			pages.remove(key, page);
+			return null;
+		}
+		return page;
+	}
+
+	public Page put(String key, byte[] content, String contentType, List<Header> headers) {
+		Page page = new Page(content, contentType, headers, System.currentTimeMillis() + ttl);
+		pages.put(key, page);
+		return page;
+	}
+
+	public void clear() {
+		pages.clear();
+	}
+
+	public static final class Page {
+
+		private final byte[] content;
+
+		private final String contentType;
+
+		private final Header[] headers;
+
+		private final String etag;
+
+		private final long expires;
+
+		Page(byte[] content, String contentType, List<Header> headers, long expires) {
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			this.content = content;
+			this.contentType = contentType;
+			this.headers = headers.toArray(new Header[headers.size()]);
+			this.etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(content.length) + "\"";
+			this.expires = expires;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * Replay the headers set while the page was rendered.
+		 */
+		public void writeHeaders(HttpServletResponse response) {
+			for (Header header : headers) {
+				header.writeTo(response);
+			}
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() >= expires;
+		}
+
+	}
+
+	public static final class Header {
+
+		private final String name;
+
+		private final Object value;
+
+		private final boolean add;
+
+		Header(String name, Object value, boolean add) {
+			this.name = name;
+			this.value = value;
+			this.add = add;
+		}
+
+		void writeTo(HttpServletResponse response) {
+			if (value instanceof Long) {
+				if (add) {
+					response.addDateHeader(name, (Long) value);
+				} else {
+					response.setDateHeader(name, (Long) value);
+				}
+			} else if (value instanceof Integer) {
+				if (add) {
+					response.addIntHeader(name, (Integer) value);
+				} else {
+					response.setIntHeader(name, (Integer) value);
+				}
+			} else if (add) {
+				response.addHeader(name, (String) value);
+			} else {
+				response.setHeader(name, (String) value);
+			}
+		}
+
+	}
+
+	/**
+	 * Record the headers of a cacheable page, and whether it is still
+	 * cacheable, i.e. sets no cookie, does not redirect, does not fail, and
+	 * does not create a session, whose cookie the container sets.
+	 */
+	public static final class Recorder extends HttpServletResponseWrapper {
+
+		private final HttpServletRequest request;
+
+		private final String key;
+
+		private final List<Header> headers = new ArrayList<Header>();
+
+		private boolean cacheable = true;
+
+		public Recorder(HttpServletRequest request, HttpServletResponse response, String key) {
+			super(response);
+			this.request = request;
+			this.key = key;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public boolean isCacheable() {
+			if (! cacheable) {
+				return false;
+			}
+			HttpSession session = request.getSession(false);
+			return session == null || ! session.isNew();
+		}
+
+		public List<Header> getHeaders() {
+			return headers;
+		}
+
+		private void record(String name, Object value, boolean add) {
+			if ("Set-Cookie".equalsIgnoreCase(name) || "Set-Cookie2".equalsIgnoreCase(name)
+					|| "Location".equalsIgnoreCase(name)) {
+				cacheable = false;
+			}
+			headers.add(new Header(name, value, add));
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			record(name, value, false);
+			super.setHeader(name, value);
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			record(name, value, true);
+			super.addHeader(name, value);
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+			record(name, date, false);
+			super.setDateHeader(name, date);
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+			record(name, date, true);
+			super.addDateHeader(name, date);
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			record(name, value, false);
+			super.setIntHeader(name, value);
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			record(name, value, true);
+			super.addIntHeader(name, value);
+		}
+
+		@Override
+		public void addCookie(Cookie cookie) {
+			cacheable = false;
+			super.addCookie(cookie);
+		}
+
+		@Override
+		public void setStatus(int status) {
+			if (status != SC_OK) {
+				cacheable = false;
+			}
+			super.setStatus(status);
+		}
+
+		@Override
+		@Deprecated
+		public void setStatus(int status, String message) {
+			if (status != SC_OK) {
+				cacheable = false;
+			}
+			super.setStatus(status, message);
+		}
+
+		@Override
+		public void sendError(int status) throws IOException {
+			cacheable = false;
+			super.sendError(status);
+		}
+
+		@Override
+		public void sendError(int status, String message) throws IOException {
+			cacheable = false;
+			super.sendError(status, message);
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			cacheable = false;
+			super.sendRedirect(location);
+		}
+
+	}
+
+}
@@ -0,0 +1,95 @@
+package mvcoc.web.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Pass the output through to the writer, replacing each occurrence of the
+ * placeholder marker with the output of {@link #writePlaceholder()}.
+ *
+ * The first char of the marker must not occur again in it, so a partial
+ * match can be given up without backtracking.
+ */
+public abstract class PlaceholderWriter extends Writer {
+
+	private final Writer writer;
+
+	private final char[] marker;
+
+	private int matched;
+
+	public PlaceholderWriter(Writer writer, String marker) {
+		if (marker.length() == 0 || marker.indexOf(marker.charAt(0), 1) > 0) {
+			throw new IllegalArgumentException("Illegal placeholder marker " + marker);
+		}
+		this.writer = writer;
+		this.marker = marker.toCharArray();
+	}
+
+	/**
+	 * Write the placeholder content at the marker position, to the underlying writer.
+	 */
+	protected abstract void writePlaceholder() throws IOException;
+
+	@Override
+	public void write(int c) throws IOException {
+		write(new char[] { (char) c }, 0, 1);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off + len;
+		int start = off;
+		for (int i = off; i < end; i ++) {
+			char c = cbuf[i];
+			if (matched > 0 && c != marker[matched]) {
+				writer.write(marker, 0, matched);
+				matched = 0;
+				start = i;
+			}
+			if (c == marker[matched]) {
+				if (matched == 0) {
+					writer.write(cbuf, start, i - start);
+				}
+				matched ++;
+				start = i + 1;
+				if (matched == marker.length) {
+					matched = 0;
+					writePlaceholder();
+				}
+			}
+		}
+		if (matched == 0) {
+			writer.write(cbuf, start, end - start);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		char[] cbuf = new char[len];
+		str.getChars(off, off + len, cbuf, 0);
+		write(cbuf, 0, len);
+	}
+
+	/**
+	 * Write out the chars of a trailing partial match.
+	 */
+	public void finish() throws IOException {
+		if (matched > 0) {
+			writer.write(marker, 0, matched);
+			matched = 0;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		writer.close();
+	}
+
+}
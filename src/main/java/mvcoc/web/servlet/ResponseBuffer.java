@@ -0,0 +1,110 @@
+package mvcoc.web.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Buffer the rendered bytes of a response in a pooled byte array.
+ *
+ * If the page fits the buffer, it is written at once with its Content-Length,
+ * otherwise the buffered bytes are written out when it overflows and the rest
+ * is streamed, chunked by the container. The byte array is returned to the
+ * pool on {@link #close()}.
+ */
+public class ResponseBuffer extends OutputStream {
+
+	private final HttpServletResponse response;
+
+	private final BlockingQueue<byte[]> pool;
+
+	private byte[] buffer;
+
+	private int count;
+
+	private OutputStream output;
+
+	public ResponseBuffer(HttpServletResponse response, BlockingQueue<byte[]> pool, int size) {
+		this.response = response;
+		this.pool = pool;
+		byte[] buffer = pool.poll();
+		this.buffer = buffer != null && buffer.length == size ? buffer : new byte[size];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (output != null) {
+			output.write(b);
+		} else if (count < buffer.length) {
+			buffer[count ++] = (byte) b;
+		} else {
+			overflow().write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (output != null) {
+			output.write(b, off, len);
+		} else if (count + len <= buffer.length) {
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		} else {
+			overflow().write(b, off, len);
+		}
+	}
+
+	private OutputStream overflow() throws IOException {
+		output = response.getOutputStream();
+		output.write(buffer, 0, count);
+		count = 0;
+		return output;
+	}
+
+	/**
+	 * Whether the page still fits the buffer, and nothing is written yet.
+	 */
+	public boolean isBuffered() {
+		return output == null;
+	}
+
+	/**
+	 * A copy of the buffered bytes, while the page fits the buffer.
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[count];
+		System.arraycopy(buffer, 0, bytes, 0, count);
+		return bytes;
+	}
+
+	/**
+	 * Write out the buffered bytes, with the Content-Length if the page fits.
+	 */
+	public void commit() throws IOException {
+		if (output == null) {
+			response.setContentLength(count);
+			output = response.getOutputStream();
+			output.write(buffer, 0, count);
+			count = 0;
+		}
+		output.flush();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (output != null) {
+			output.flush();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (buffer != null) {
+			pool.offer(buffer);
+			buffer = null;
+		}
+	}
+
+}